@@ -0,0 +1,165 @@
+package com.isti.gmpegmm;
+
+import java.lang.management.ManagementFactory;
+import java.util.SplittableRandom;
+
+import gov.usgs.earthquake.nshmp.gmm.Gmm;
+import gov.usgs.earthquake.nshmp.gmm.GmmInput;
+import gov.usgs.earthquake.nshmp.gmm.GroundMotions;
+import gov.usgs.earthquake.nshmp.gmm.Imt;
+import gov.usgs.earthquake.nshmp.tree.LogicTree;
+
+/**
+ * Checks that the {@link PgaCalculator} calculations do not allocate outside
+ * of nshmp-lib in steady state.
+ * <p>
+ * The bytes allocated per call by the calculator are compared with the bytes
+ * allocated per call by the nshmp-lib calls alone (creating the input and
+ * calculating the ground motions for each branch) for the same scenarios. The
+ * check fails, with exit status 1, if the difference is more than the
+ * {@code alloc.budget} system property (bytes per call, default 16) or if the
+ * distance, region and vs30 lookups allocate at all. Run with
+ * {@code -XX:-DoEscapeAnalysis} (as the {@code alloccheck} Ant target does) so
+ * that the JIT does not remove a different set of allocations from each path.
+ */
+public class AllocationCheck {
+    /** Number of measured calls */
+    private static final int CALLS = 20000;
+    /** Number of scenarios */
+    private static final int SIZE = 1024;
+    /** Number of warm-up rounds */
+    private static final int WARMUP = 20;
+
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean)
+            ManagementFactory.getThreadMXBean();
+
+    private static double sink;
+
+    private static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Run the check.
+     *
+     * @param args the arguments (not used).
+     */
+    public static void main(String[] args) {
+        final long budget = Long.getLong("alloc.budget", 16);
+        final SplittableRandom random = new SplittableRandom(1);
+        final double[] siteLons = new double[SIZE];
+        final double[] siteLats = new double[SIZE];
+        final double[] eqLons = new double[SIZE];
+        final double[] eqLats = new double[SIZE];
+        final double[] mags = new double[SIZE];
+        final double[] depths = new double[SIZE];
+        final double[] vs30s = new double[SIZE];
+        final double[] out = new double[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            // conterminous US
+            eqLons[i] = random.nextDouble(-124.0, -66.0);
+            eqLats[i] = random.nextDouble(25.0, 49.0);
+            siteLons[i] = eqLons[i] + random.nextDouble(-1.0, 1.0);
+            siteLats[i] = Math.max(25.0, Math.min(49.0, eqLats[i] + random.nextDouble(-1.0, 1.0)));
+            mags[i] = random.nextDouble(4.0, 8.0);
+            depths[i] = random.nextDouble(0.0, 30.0);
+            vs30s[i] = random.nextDouble(200.0, 1200.0);
+        }
+        try (PgaCalculator calculator = new PgaCalculator(1, 1)) {
+            Task calc = i -> sink += calculator.calc(siteLons[i], siteLats[i], mags[i], eqLons[i], eqLats[i],
+                    depths[i], vs30s[i]);
+            Task lib = i -> sink += calcLib(siteLons[i], siteLats[i], mags[i], eqLons[i], eqLats[i], depths[i],
+                    vs30s[i]);
+            Task lookups = i -> sink += calcLookups(siteLons[i], siteLats[i], eqLons[i], eqLats[i], depths[i]);
+            Task array = i -> {
+                calculator.calc(siteLons, siteLats, mags, eqLons, eqLats, depths, vs30s, out);
+                sink += out[i];
+            };
+            for (int n = 0; n < WARMUP; n++) {
+                measure(calc, CALLS);
+                measure(lib, CALLS);
+                measure(lookups, CALLS);
+                measure(array, CALLS / SIZE);
+            }
+            double calcBytes = measure(calc, CALLS);
+            double libBytes = measure(lib, CALLS);
+            double lookupBytes = measure(lookups, CALLS);
+            double arrayBytes = measure(array, CALLS / SIZE) / SIZE;
+            double ourBytes = calcBytes - libBytes;
+            System.out.printf("calc: %.1f bytes/call, nshmp-lib: %.1f bytes/call, difference: %.1f bytes/call"
+                    + " (budget %d)%n", calcBytes, libBytes, ourBytes, budget);
+            System.out.printf("lookups: %.1f bytes/call, array: %.1f bytes/scenario (nshmp-lib %.1f)%n",
+                    lookupBytes, arrayBytes, libBytes);
+            boolean failed = false;
+            if (ourBytes > budget) {
+                System.out.println("FAILED: calc allocates more than the budget");
+                failed = true;
+            }
+            if (arrayBytes - libBytes > budget) {
+                System.out.println("FAILED: array calc allocates more than the budget");
+                failed = true;
+            }
+            if (lookupBytes > 0.0) {
+                System.out.println("FAILED: lookups allocate");
+                failed = true;
+            }
+            if (failed) {
+                System.exit(1);
+            }
+            System.out.println("OK");
+        }
+    }
+
+    /**
+     * Calculate with only the nshmp-lib calls.
+     *
+     * @return the sum of the branch means.
+     */
+    private static double calcLib(double siteLon, double siteLat, double mag, double eqLon, double eqLat,
+            double depth, double vs30) {
+        LogicTree<Gmm> gmmTree = GmmUtil.getGmmTree(Region.getRegion(siteLat, siteLon));
+        double distance = UtilFns.calcDistance(siteLat, siteLon, eqLat, eqLon);
+        GmmInput input = DeterministicSpectra.createInput(mag, distance, distance,
+                UtilFns.calcDistanceToRupture(distance, depth), vs30);
+        double value = 0.0;
+        for (int i = 0; i < gmmTree.size(); i++) {
+            value += GroundMotions.combine(GmmCache.getInstance(gmmTree.get(i).value(), Imt.PGA).calc(input))
+                    .mean();
+        }
+        return value;
+    }
+
+    /**
+     * Calculate with only the distance, region and vs30 lookups.
+     *
+     * @return the sum of the values.
+     */
+    private static double calcLookups(double siteLon, double siteLat, double eqLon, double eqLat, double depth) {
+        double distance = UtilFns.calcDistance(siteLat, siteLon, eqLat, eqLon);
+        Region region = RegionIndex.getInstance().getRegion(siteLat, siteLon);
+        return UtilFns.calcDistanceToRupture(distance, depth) + region.ordinal()
+                + Vs30Raster.getVs30(siteLat, siteLon) + GmmUtil.getGmmTree(region).size();
+    }
+
+    /**
+     * Measure the task.
+     *
+     * @param task  the task.
+     * @param calls the number of calls.
+     * @return the bytes allocated per call.
+     */
+    private static double measure(Task task, int calls) {
+        long start = allocatedBytes();
+        for (int n = 0; n < calls; n++) {
+            task.run(n & (SIZE - 1));
+        }
+        return (double) (allocatedBytes() - start) / calls;
+    }
+
+    /**
+     * Calculation for a scenario index.
+     */
+    private interface Task {
+        void run(int index);
+    }
+}
@@ -0,0 +1,59 @@
+package com.isti.gmpegmm;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import gov.usgs.earthquake.nshmp.calc.Site;
+
+/**
+ * Benchmarks {@link DeterministicSpectra#calcPga(Logger, Scenario)} per region
+ * over magnitude and distance bins.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CalcPgaBenchmark {
+    /** Kilometers per degree of latitude */
+    private static final double KM_PER_DEGREE = 111.19;
+
+    @Param({ "10", "50", "200" })
+    public double distance;
+
+    @Param({ "5.0", "6.5", "8.0" })
+    public double mag;
+
+    @Param({ "CEUS", "WUS", "COUS" })
+    public Region region;
+
+    private Logger log;
+    private Scenario scenario;
+
+    @Benchmark
+    public double calcPga() {
+        return DeterministicSpectra.calcPga(log, scenario);
+    }
+
+    @Setup
+    public void setup() {
+        log = UtilFns.createQuietLogger();
+        double lat = 37.0;
+        double lon = region == Region.WUS ? -120.0 : region == Region.CEUS ? -90.0 : -107.5;
+        scenario = new Scenario(region.name(), lon, lat, region, mag, lon, lat + distance / KM_PER_DEGREE, 10.0,
+                Site.VS_30_DEFAULT);
+    }
+}
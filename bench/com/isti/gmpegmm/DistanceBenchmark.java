@@ -0,0 +1,107 @@
+package com.isti.gmpegmm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import gov.usgs.earthquake.nshmp.geo.Location;
+
+/**
+ * Benchmarks {@link UtilFns#calcDistance(Location, Location)} and
+ * {@link UtilFns#calcDistanceToRupture(double, double)} over distance bins and
+ * the {@link DistanceKernel} for a site and for an array of sites and the
+ * {@link SiteDistances} for an array of sites (run with {@code -Dbench.args=
+ * "-jvmArgs --add-modules=jdk.incubator.vector"} for the vector calculator).
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DistanceBenchmark {
+    /** Kilometers per degree of latitude */
+    private static final double KM_PER_DEGREE = 111.19;
+
+    @Param({ "10", "50", "200" })
+    public double distance;
+
+    private double depth;
+    private double[] distances;
+    private Location eqLocation;
+    private double[] lats;
+    private double[] lons;
+    private double[] rJB;
+    private RuptureGeometry rupture;
+    private double[] rRup;
+    private double[] rX;
+    private Location siteLocation;
+    private double siteLat;
+    private double siteLon;
+
+    @Benchmark
+    public double calcDistance() {
+        return UtilFns.calcDistance(siteLocation, eqLocation);
+    }
+
+    @Benchmark
+    public double calcDistanceNewSite() {
+        return UtilFns.calcDistance(UtilFns.createLocation(siteLat, siteLon), eqLocation);
+    }
+
+    @Benchmark
+    public double calcDistanceToRupture() {
+        return UtilFns.calcDistanceToRupture(distance, depth);
+    }
+
+    @Benchmark
+    public double[] calcKernel() {
+        DistanceKernel.calc(rupture, siteLat, siteLon, distances);
+        return distances;
+    }
+
+    /** 100,000 sites per operation */
+    @Benchmark
+    public double[] calcKernelArray() {
+        DistanceKernel.calc(rupture, lats, lons, rJB, rX, rRup);
+        return rRup;
+    }
+
+    /** 100,000 sites per operation */
+    @Benchmark
+    public double[] calcSiteDistances() {
+        SiteDistances.calc(rupture.getLat(), siteLon, depth, lats, lons, 0, lats.length, rJB, rRup);
+        return rRup;
+    }
+
+    @Setup
+    public void setup() {
+        depth = 10.0;
+        siteLat = 37.0;
+        siteLon = -120.0;
+        siteLocation = UtilFns.createLocation(siteLat, siteLon);
+        eqLocation = UtilFns.createLocation(siteLat + distance / KM_PER_DEGREE, siteLon, depth);
+        rupture = RuptureGeometry.create(7.0, siteLon, siteLat + distance / KM_PER_DEGREE, depth);
+        distances = new double[3];
+        int size = 100_000;
+        lats = new double[size];
+        lons = new double[size];
+        rJB = new double[size];
+        rX = new double[size];
+        rRup = new double[size];
+        for (int i = 0; i < size; i++) {
+            lats[i] = siteLat + (i % 316) * 0.01;
+            lons[i] = siteLon + (i / 316) * 0.01;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.isti.gmpegmm;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import gov.usgs.earthquake.nshmp.gmm.Gmm;
+import gov.usgs.earthquake.nshmp.tree.LogicTree;
+
+/**
+ * Benchmarks loading the {@link GmmUtil} logic trees.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GmmUtilBenchmark {
+    @Param({ "CEUS", "COUS" })
+    public Region region;
+    private long checksum;
+    private byte[] snapshot;
+
+    @Setup
+    public void setup() throws IOException {
+        File file = File.createTempFile("gmm-trees", ".bin");
+        try {
+            checksum = GmmUtil.calcChecksum(GmmUtil.class.getResourceAsStream("/res/gmm-trees.json"));
+            GmmUtil.writeSnapshot(GmmUtil.loadTrees(), checksum, file.getPath());
+            snapshot = Files.readAllBytes(file.toPath());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Benchmark
+    public long calcChecksum() throws IOException {
+        return GmmUtil.calcChecksum(GmmUtil.class.getResourceAsStream("/res/gmm-trees.json"));
+    }
+
+    @Benchmark
+    public Map<Region, LogicTree<Gmm>> loadTrees() {
+        return GmmUtil.loadTrees();
+    }
+
+    @Benchmark
+    public Optional<LogicTree<Gmm>> readSnapshot() throws IOException {
+        return GmmUtil.readSnapshot(new ByteArrayInputStream(snapshot), region, checksum);
+    }
+
+    @Benchmark
+    public LogicTree<Gmm> readTree() throws IOException {
+        return GmmUtil.readTree(GmmUtil.class.getResourceAsStream("/res/gmm-trees.json"), region);
+    }
+}
@@ -0,0 +1,60 @@
+package com.isti.gmpegmm;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link Region#getRegion(double, double)} and
+ * {@link RegionIndex#getRegion(double, double)}.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RegionBenchmark {
+    /** Number of points */
+    private static final int SIZE = 1024;
+
+    private int index;
+    private double[] lats;
+    private double[] lons;
+    private RegionIndex regionIndex;
+
+    @Benchmark
+    public Region getRegion() {
+        int i = index++ & (SIZE - 1);
+        return Region.getRegion(lats[i], lons[i]);
+    }
+
+    @Benchmark
+    public Region getRegionIndex() {
+        int i = index++ & (SIZE - 1);
+        return regionIndex.getRegion(lats[i], lons[i]);
+    }
+
+    @Setup
+    public void setup() {
+        regionIndex = RegionIndex.getInstance();
+        lats = new double[SIZE];
+        lons = new double[SIZE];
+        SplittableRandom random = new SplittableRandom(1);
+        for (int i = 0; i < SIZE; i++) {
+            lats[i] = 15.0 + random.nextDouble() * 60.0;
+            lons[i] = -180.0 + random.nextDouble() * 120.0;
+        }
+    }
+}
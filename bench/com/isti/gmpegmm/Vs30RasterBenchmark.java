@@ -0,0 +1,70 @@
+package com.isti.gmpegmm;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link Vs30Raster#lookup(double, double)}.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Vs30RasterBenchmark {
+    /** Number of points */
+    private static final int SIZE = 1024;
+
+    private int index;
+    private double[] lats;
+    private double[] lons;
+    private Vs30Raster raster;
+
+    @Benchmark
+    public double lookup() {
+        int i = index++ & (SIZE - 1);
+        return raster.lookup(lats[i], lons[i]);
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        int ncols = 601;
+        int nrows = 261;
+        StringBuilder sb = new StringBuilder();
+        sb.append("ncols ").append(ncols).append("\nnrows ").append(nrows);
+        sb.append("\nxllcenter -125.0\nyllcenter 24.0\ncellsize 0.1\nNODATA_value -9999\n");
+        SplittableRandom random = new SplittableRandom(1);
+        for (int row = 0; row < nrows; row++) {
+            for (int col = 0; col < ncols; col++) {
+                sb.append(random.nextInt(150, 1500)).append(' ');
+            }
+            sb.append('\n');
+        }
+        File file = File.createTempFile("vs30", ".bin");
+        file.deleteOnExit();
+        raster = Vs30Raster.convert(new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.UTF_8)),
+                file.toPath());
+        lats = new double[SIZE];
+        lons = new double[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            lats[i] = 24.0 + random.nextDouble() * 26.0;
+            lons[i] = -125.0 + random.nextDouble() * 60.0;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.isti.gmpegmm;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API implementation of the {@link SiteDistances} calculator.
+ * <p>
+ * Requires the {@code jdk.incubator.vector} module. The remaining sites after
+ * the last full vector are calculated with the scalar code.
+ */
+public class VectorDistanceCalculator implements SiteDistances.Calculator {
+    private static final double DEG_TO_RAD = Math.PI / 180.0;
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private final SiteDistances.Calculator scalar = new SiteDistances.ScalarCalculator();
+
+    @Override
+    public void calc(double eqLat, double eqLon, double eqDepth, double[] lats, double[] lons, int from, int to,
+            double[] rJB, double[] rRup) {
+        final double lat0 = Math.toRadians(eqLat);
+        final double lon0 = Math.toRadians(eqLon);
+        final double depth2 = eqDepth * eqDepth;
+        final int upperBound = from + SPECIES.loopBound(to - from);
+        int i = from;
+        for (; i < upperBound; i += SPECIES.length()) {
+            DoubleVector lat = DoubleVector.fromArray(SPECIES, lats, i).mul(DEG_TO_RAD);
+            DoubleVector lon = DoubleVector.fromArray(SPECIES, lons, i).mul(DEG_TO_RAD);
+            DoubleVector dLat = lat.sub(lat0);
+            DoubleVector dLon = lon.sub(lon0).mul(lat.add(lat0).mul(0.5).lanewise(VectorOperators.COS));
+            DoubleVector distance = dLat.mul(dLat).add(dLon.mul(dLon)).sqrt().mul(DistanceKernel.EARTH_RADIUS_MEAN);
+            distance.intoArray(rJB, i);
+            distance.mul(distance).add(depth2).sqrt().intoArray(rRup, i);
+        }
+        if (i < to) {
+            scalar.calc(eqLat, eqLon, eqDepth, lats, lons, i, to, rJB, rRup);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.isti.gmpegmm;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.logging.Logger;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Calculates the PGA values for a stream of scenarios, one scenario per line.
+ * <p>
+ * Each line is either CSV with the same fields as the command line arguments
+ * or an NDJSON object with the {@link #FIELD_NAMES} keys. Blank lines and lines
+ * starting with {@code #} are ignored. One result is written per scenario in
+ * input order; if a scenario is not valid the
+ * {@link DeterministicSpectra#PGACALC_NO_RESULT_KEY} value (or an empty line if
+ * none) is written in its place.
+ */
+public class BatchMode {
+    private static final String LOG_PREFIX = UtilFns.getLogPrefix(BatchMode.class);
+    /** Batch mode command line option */
+    public static final String BATCH_OPTION = "--batch";
+    /** The comment prefix */
+    public static final String COMMENT_PREFIX = "#";
+    /** NDJSON field names in argument order */
+    public static final String[] FIELD_NAMES = { "site", "siteLon", "siteLat", "eqMag", "eqLon", "eqLat", "eqDepth",
+            "vs30" };
+    /** Standard input file name */
+    public static final String STDIN_NAME = "-";
+
+    /**
+     * Open the input stream.
+     *
+     * @param name the file name or {@link #STDIN_NAME} for standard input.
+     * @return the input stream.
+     * @throws IOException if an I/O error occurs.
+     */
+    static InputStream openInput(String name) throws IOException {
+        if (name == null || STDIN_NAME.equals(name)) {
+            return System.in;
+        }
+        return UtilFns.openInputStream(name);
+    }
+
+    /**
+     * Open the output stream, the {@link DeterministicSpectra#PGACALC_OUTPUT_PATH_KEY}
+     * file if specified or standard output otherwise.
+     *
+     * @return the output stream.
+     * @throws IOException if an I/O error occurs.
+     */
+    static OutputStream openOutput() throws IOException {
+        if (DeterministicSpectra.PGACALC_OUTPUT_PATH_TEXT == null) {
+            return System.out;
+        }
+        return new FileOutputStream(DeterministicSpectra.PGACALC_OUTPUT_PATH_TEXT);
+    }
+
+    /**
+     * Parse the CSV line.
+     *
+     * @param line the line.
+     * @return the fields.
+     */
+    static String[] parseCsv(String line) {
+        List<String> fields = new ArrayList<>(FIELD_NAMES.length);
+        StringBuilder sb = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        sb.append(c);
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    sb.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(sb.toString().trim());
+                sb.setLength(0);
+            } else {
+                sb.append(c);
+            }
+        }
+        fields.add(sb.toString().trim());
+        return fields.toArray(new String[fields.size()]);
+    }
+
+    /**
+     * Parse the NDJSON line.
+     *
+     * @param line the line.
+     * @return the fields.
+     */
+    static String[] parseJson(String line) {
+        JsonObject o = JsonParser.parseString(line).getAsJsonObject();
+        String[] fields = new String[FIELD_NAMES.length];
+        for (int i = 0; i < fields.length; i++) {
+            JsonElement e = o.get(FIELD_NAMES[i]);
+            if (e != null && !e.isJsonNull()) {
+                fields[i] = e.getAsString();
+            } else if (i < Scenario.MIN_ARGS) {
+                throw new IllegalArgumentException("missing field: " + FIELD_NAMES[i]);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Parse the scenario line.
+     *
+     * @param line the CSV or NDJSON line.
+     * @return the scenario.
+     * @throws IllegalArgumentException if the line is not valid.
+     */
+    public static Scenario parseScenario(String line) {
+        String[] fields;
+        if (line.startsWith("{")) {
+            try {
+                fields = parseJson(line);
+            } catch (IllegalArgumentException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new IllegalArgumentException("invalid JSON (" + line + ")");
+            }
+        } else {
+            fields = parseCsv(line);
+        }
+        return Scenario.parse(fields);
+    }
+
+    /**
+     * Quote the CSV field if it contains a comma or quote.
+     *
+     * @param field the field.
+     * @return the field or the quoted field.
+     */
+    static String quoteCsv(String field) {
+        if (field.indexOf(',') < 0 && field.indexOf('"') < 0) {
+            return field;
+        }
+        return '"' + field.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Run the batch mode.
+     *
+     * @param args the program arguments, the optional input file name follows the
+     *             {@link #BATCH_OPTION}, standard input is used if none.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static void run(String[] args) throws IOException {
+        String name = args.length > 1 ? args[1] : STDIN_NAME;
+        try (InputStream is = openInput(name); OutputStream os = openOutput()) {
+            run(is, os);
+        }
+    }
+
+    /**
+     * Calculate the PGA values for the scenarios from the input stream.
+     *
+     * @param is the input stream.
+     * @param os the output stream.
+     * @return the number of scenarios.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static long run(InputStream is, OutputStream os) throws IOException {
+        final Logger log = Logger.getLogger(DeterministicSpectra.class.toString());
+        final BranchColumns columns = BranchColumns.create();
+        if (columns == null) {
+            return run(is, os, scenario -> DeterministicSpectra.calcPga(log, scenario));
+        }
+        try (columns) {
+            final BranchColumns.Group group = columns.createGroup(0);
+            long count = runText(is, os,
+                    scenario -> String.format("%f", DeterministicSpectra.calcPga(log, scenario, group)),
+                    group::addMissing);
+            group.flush();
+            return count;
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Calculate the values for the scenarios from the input stream.
+     *
+     * @param is         the input stream.
+     * @param os         the output stream.
+     * @param calculator the value calculator.
+     * @return the number of scenarios.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static long run(InputStream is, OutputStream os, ToDoubleFunction<Scenario> calculator)
+            throws IOException {
+        return runText(is, os, scenario -> String.format("%f", calculator.applyAsDouble(scenario)));
+    }
+
+    /**
+     * Calculate the result text for the scenarios from the input stream.
+     *
+     * @param is         the input stream.
+     * @param os         the output stream.
+     * @param calculator the result text calculator.
+     * @return the number of scenarios.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static long runText(InputStream is, OutputStream os, Function<Scenario, String> calculator)
+            throws IOException {
+        return runText(is, os, calculator, null);
+    }
+
+    /**
+     * Calculate the result text for the scenarios from the input stream.
+     *
+     * @param is         the input stream.
+     * @param os         the output stream.
+     * @param calculator the result text calculator.
+     * @param noResult   called for each scenario without a result or null if
+     *                   none.
+     * @return the number of scenarios.
+     * @throws IOException if an I/O error occurs.
+     */
+    static long runText(InputStream is, OutputStream os, Function<Scenario, String> calculator, Runnable noResult)
+            throws IOException {
+        final Logger log = Logger.getLogger(DeterministicSpectra.class.toString());
+        final String noResultText = DeterministicSpectra.PGACALC_NO_RESULT_TEXT != null
+                ? DeterministicSpectra.PGACALC_NO_RESULT_TEXT
+                : UtilFns.EMPTY_STRING;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, UtilFns.CHARSET),
+                UtilFns.DEFAULT_BUFFER_SIZE);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(os, UtilFns.CHARSET), UtilFns.DEFAULT_BUFFER_SIZE);
+        long count = 0;
+        long lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith(COMMENT_PREFIX)) {
+                continue;
+            }
+            count++;
+            String value;
+            try {
+                value = calculator.apply(parseScenario(line));
+            } catch (UncheckedIOException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                log.warning(LOG_PREFIX + "line " + lineNumber + ": " + ex.toString());
+                value = noResultText;
+                if (noResult != null) {
+                    noResult.run();
+                }
+            }
+            writer.write(value);
+            writer.write('\n');
+            // flush when the input has stalled so results stream to the consumer
+            if (!reader.ready()) {
+                writer.flush();
+            }
+        }
+        writer.flush();
+        BranchLog.flush();
+        log.info(LOG_PREFIX + count + " scenarios, " + GmmCache.toStatsString() + ", " + ResultCache.toStatsString()
+                + ", branch log drops="
+                + BranchLog.getDropCount());
+        if (Metrics.PGACALC_METRICS) {
+            log.info(LOG_PREFIX + "metrics\n" + Metrics.INSTANCE.getReport());
+        }
+        return count;
+    }
+}
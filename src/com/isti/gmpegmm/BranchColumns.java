@@ -0,0 +1,482 @@
+package com.isti.gmpegmm;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import gov.usgs.earthquake.nshmp.gmm.Gmm;
+import gov.usgs.earthquake.nshmp.tree.Branch;
+import gov.usgs.earthquake.nshmp.tree.LogicTree;
+
+/**
+ * Keeps the log mean and sigma of each ground motion model for every scenario
+ * of a batch or grid run, so that the results for other logic tree weights can
+ * be calculated without calculating the ground motion models again.
+ * <p>
+ * There is one column per ground motion model of the region logic trees, in
+ * order of first appearance. The file is little-endian with a header (magic,
+ * version, header size, the column names and, for each region, the columns
+ * calculated for the region) followed by groups of up to {@link #GROUP_SIZE}
+ * rows. Each group has the first row, the number of rows, the region ordinal
+ * of each row ({@link #NO_REGION} if there is no result) and then the log
+ * means and the sigmas of each column. A column that was not calculated for a
+ * row has a negative infinite log mean and a NaN sigma. The rows are the
+ * scenarios in input order for a batch run and the nodes in row-major order
+ * for a grid run; the groups of a grid run may be written out of order.
+ * <p>
+ * The {@link #REWEIGHT_OPTION} mode reads the logic trees from a file in the
+ * {@code gmm-trees.json} format and calculates the weighted mean of each row
+ * with one primitive pass over each column that has a weight, the ground
+ * motion models are not used.
+ */
+public class BranchColumns implements Closeable {
+    private static final String LOG_PREFIX = UtilFns.getLogPrefix(BranchColumns.class);
+    /** Number of rows in a group */
+    public static final int GROUP_SIZE = 4096;
+    /** Size of the group header in bytes (first row and number of rows) */
+    public static final int GROUP_HEADER_SIZE = 8 + 4;
+    /** Magic number */
+    public static final int MAGIC = 0x4c434247; // "GBCL" little-endian
+    /** Region value for a row without a result */
+    public static final byte NO_REGION = -1;
+    /** PGA Calculator branch columns key */
+    public static final String PGACALC_BRANCH_COLUMNS_KEY = "PGACALC_BRANCH_COLUMNS";
+    /**
+     * PGA Calculator branch columns text, the file to keep the branch columns of
+     * batch and grid runs in or null for none
+     */
+    public static final String PGACALC_BRANCH_COLUMNS_TEXT = System.getProperty(PGACALC_BRANCH_COLUMNS_KEY);
+    /** Reweight mode command line option */
+    public static final String REWEIGHT_OPTION = "--reweight";
+    /** File version */
+    public static final int VERSION = 1;
+
+    /**
+     * Create the branch columns for the {@link #PGACALC_BRANCH_COLUMNS_KEY}
+     * property.
+     *
+     * @return the branch columns or null if none.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static BranchColumns create() throws IOException {
+        if (PGACALC_BRANCH_COLUMNS_TEXT == null) {
+            return null;
+        }
+        Map<Region, LogicTree<Gmm>> gmmTreeMap = new LinkedHashMap<>();
+        for (Region region : Region.values()) {
+            LogicTree<Gmm> gmmTree = GmmUtil.getGmmTree(region);
+            if (gmmTree != null) {
+                gmmTreeMap.put(region, gmmTree);
+            }
+        }
+        return new BranchColumns(Paths.get(PGACALC_BRANCH_COLUMNS_TEXT), gmmTreeMap);
+    }
+
+    /**
+     * Get the string from the buffer.
+     *
+     * @param buffer the buffer.
+     * @return the string.
+     */
+    private static String getString(ByteBuffer buffer) {
+        byte[] b = new byte[buffer.getInt()];
+        buffer.get(b);
+        return new String(b, UtilFns.CHARSET);
+    }
+
+    /**
+     * Put the string in the buffer.
+     *
+     * @param buffer the buffer.
+     * @param s      the string.
+     */
+    private static void putString(ByteBuffer buffer, String s) {
+        byte[] b = s.getBytes(UtilFns.CHARSET);
+        buffer.putInt(b.length).put(b);
+    }
+
+    /**
+     * Read the buffer from the channel.
+     *
+     * @param channel  the file channel.
+     * @param buffer   the buffer, which is flipped.
+     * @param position the file position.
+     * @throws IOException if an I/O error occurs or the file is truncated.
+     */
+    private static void read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count < 0) {
+                throw new IOException("truncated branch columns");
+            }
+            position += count;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Calculate the weighted means from the branch columns and write one value
+     * per row, the {@link DeterministicSpectra#PGACALC_NO_RESULT_KEY} value (or
+     * an empty line if none) if the row has no result.
+     *
+     * @param path       the branch columns path.
+     * @param gmmTreeMap the logic trees.
+     * @param os         the output stream.
+     * @return the number of rows.
+     * @throws IOException              if an I/O error occurs.
+     * @throws IllegalArgumentException if a logic tree has a ground motion model
+     *                                  that was not calculated for the region.
+     */
+    public static long reweight(Path path, Map<Region, LogicTree<Gmm>> gmmTreeMap, OutputStream os)
+            throws IOException {
+        final String noResultText = DeterministicSpectra.PGACALC_NO_RESULT_TEXT != null
+                ? DeterministicSpectra.PGACALC_NO_RESULT_TEXT
+                : UtilFns.EMPTY_STRING;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(4 * 3).order(ByteOrder.LITTLE_ENDIAN);
+            read(channel, buffer, 0);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("invalid branch columns: " + path);
+            }
+            final int headerSize = buffer.getInt();
+            buffer = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+            read(channel, buffer, 0);
+            buffer.position(4 * 3);
+            // the column of each ground motion model
+            final int columnCount = buffer.getInt();
+            final Map<String, Integer> columnMap = new LinkedHashMap<>();
+            for (int c = 0; c < columnCount; c++) {
+                columnMap.put(getString(buffer), c);
+            }
+            // the weight of each column for each region, the last is for no result
+            final Region[] regions = Region.values();
+            final double[][] weights = new double[columnCount][regions.length + 1];
+            final boolean[] active = new boolean[columnCount];
+            final boolean[] supported = new boolean[regions.length + 1];
+            for (int count = buffer.getInt(); count > 0; count--) {
+                Region region = Region.valueOf(getString(buffer));
+                boolean[] calculated = new boolean[columnCount];
+                for (int n = buffer.getInt(); n > 0; n--) {
+                    calculated[buffer.getInt()] = true;
+                }
+                LogicTree<Gmm> gmmTree = gmmTreeMap.get(region);
+                if (gmmTree == null) {
+                    continue;
+                }
+                for (Branch<Gmm> branch : gmmTree) {
+                    Integer c = columnMap.get(branch.value().name());
+                    if (c == null || !calculated[c]) {
+                        throw new IllegalArgumentException(
+                                branch.value().name() + " was not calculated for region " + region);
+                    }
+                    weights[c][region.ordinal()] += branch.weight();
+                    active[c] = true;
+                }
+                supported[region.ordinal()] = true;
+            }
+            // find the groups
+            final long size = channel.size();
+            final List<long[]> groups = new ArrayList<>();
+            final ByteBuffer groupHeader = ByteBuffer.allocate(GROUP_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            final long rowBytes = 1 + (long) columnCount * 2 * Double.BYTES;
+            long position = headerSize;
+            while (position < size) {
+                groupHeader.clear();
+                read(channel, groupHeader, position);
+                long firstRow = groupHeader.getLong();
+                int count = groupHeader.getInt();
+                groups.add(new long[] { firstRow, position + GROUP_HEADER_SIZE, count });
+                position += GROUP_HEADER_SIZE + count * rowBytes;
+            }
+            if (position != size) {
+                throw new IOException("truncated branch columns: " + path);
+            }
+            groups.sort((a, b) -> Long.compare(a[0], b[0]));
+            // calculate the weighted means one group at a time in row order
+            final ByteBuffer data = ByteBuffer.allocate((int) (GROUP_SIZE * rowBytes)).order(ByteOrder.LITTLE_ENDIAN);
+            final int[] rowRegions = new int[GROUP_SIZE];
+            final double[] lnMeans = new double[GROUP_SIZE];
+            final double[] sums = new double[GROUP_SIZE];
+            final Writer writer = new BufferedWriter(new OutputStreamWriter(os, UtilFns.CHARSET),
+                    UtilFns.DEFAULT_BUFFER_SIZE);
+            long rows = 0;
+            for (long[] group : groups) {
+                if (group[0] != rows) {
+                    throw new IOException("missing branch columns rows " + rows + " to " + (group[0] - 1));
+                }
+                final int count = (int) group[2];
+                data.clear().limit((int) (count * rowBytes));
+                read(channel, data, group[1]);
+                for (int i = 0; i < count; i++) {
+                    byte region = data.get(i);
+                    rowRegions[i] = region == NO_REGION ? regions.length : region;
+                }
+                Arrays.fill(sums, 0, count, 0.0);
+                for (int c = 0; c < columnCount; c++) {
+                    if (!active[c]) {
+                        continue;
+                    }
+                    data.position(count + c * 2 * count * Double.BYTES);
+                    data.asDoubleBuffer().get(lnMeans, 0, count);
+                    final double[] w = weights[c];
+                    for (int i = 0; i < count; i++) {
+                        sums[i] += w[rowRegions[i]] * Math.exp(lnMeans[i]);
+                    }
+                }
+                for (int i = 0; i < count; i++) {
+                    writer.write(supported[rowRegions[i]] ? String.format("%f", sums[i]) : noResultText);
+                    writer.write('\n');
+                }
+                rows += count;
+            }
+            writer.flush();
+            return rows;
+        }
+    }
+
+    /**
+     * Run the reweight mode: {@link #REWEIGHT_OPTION} columns trees.
+     *
+     * @param args the program arguments.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static void run(String[] args) throws IOException {
+        final Logger log = Logger.getLogger(DeterministicSpectra.class.toString());
+        if (args.length != 3) {
+            throw new IllegalArgumentException("Invalid number of arguments: " + args.length);
+        }
+        Map<Region, LogicTree<Gmm>> gmmTreeMap = GmmUtil.readTrees(UtilFns.openInputStream(args[2]));
+        long start = System.nanoTime();
+        long rows;
+        try (OutputStream os = BatchMode.openOutput()) {
+            rows = reweight(Paths.get(args[1]), gmmTreeMap, os);
+        }
+        log.info(String.format("%s%d rows reweighted in %d ms", LOG_PREFIX, rows,
+                (System.nanoTime() - start) / 1000000));
+    }
+
+    private final FileChannel channel;
+    private final int columnCount;
+    /** The column of each ground motion model by ordinal or -1 if none */
+    private final int[] columnIndex = new int[Gmm.values().length];
+
+    /**
+     * Create the branch columns.
+     *
+     * @param path       the output path.
+     * @param gmmTreeMap the logic trees.
+     * @throws IOException if an I/O error occurs.
+     */
+    public BranchColumns(Path path, Map<Region, LogicTree<Gmm>> gmmTreeMap) throws IOException {
+        List<Gmm> gmms = new ArrayList<>();
+        Arrays.fill(columnIndex, -1);
+        for (LogicTree<Gmm> gmmTree : gmmTreeMap.values()) {
+            for (Branch<Gmm> branch : gmmTree) {
+                Gmm gmm = branch.value();
+                if (columnIndex[gmm.ordinal()] < 0) {
+                    columnIndex[gmm.ordinal()] = gmms.size();
+                    gmms.add(gmm);
+                }
+            }
+        }
+        columnCount = gmms.size();
+        ByteBuffer header = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(0).putInt(columnCount);
+        for (Gmm gmm : gmms) {
+            putString(header, gmm.name());
+        }
+        header.putInt(gmmTreeMap.size());
+        for (Map.Entry<Region, LogicTree<Gmm>> e : gmmTreeMap.entrySet()) {
+            putString(header, e.getKey().name());
+            LogicTree<Gmm> gmmTree = e.getValue();
+            header.putInt(gmmTree.size());
+            for (Branch<Gmm> branch : gmmTree) {
+                header.putInt(columnIndex[branch.value().ordinal()]);
+            }
+        }
+        header.putInt(8, header.position());
+        header.flip();
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Create a group of rows.
+     *
+     * @param firstRow the first row.
+     * @return the group.
+     */
+    public Group createGroup(long firstRow) {
+        return new Group(firstRow);
+    }
+
+    /**
+     * Write the group.
+     *
+     * @param group the group.
+     * @throws IOException if an I/O error occurs.
+     */
+    private void write(Group group) throws IOException {
+        final int count = group.size;
+        ByteBuffer buffer = ByteBuffer
+                .allocate(GROUP_HEADER_SIZE + count * (1 + columnCount * 2 * Double.BYTES))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putLong(group.firstRow).putInt(count).put(group.regions, 0, count);
+        for (int c = 0; c < columnCount; c++) {
+            buffer.asDoubleBuffer().put(group.lnMeans, c * GROUP_SIZE, count);
+            buffer.position(buffer.position() + count * Double.BYTES);
+            buffer.asDoubleBuffer().put(group.sigmas, c * GROUP_SIZE, count);
+            buffer.position(buffer.position() + count * Double.BYTES);
+        }
+        buffer.flip();
+        synchronized (this) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Consecutive rows of the branch columns, which is written when it is full
+     * or flushed. A group is used by one thread at a time.
+     */
+    public class Group {
+        private long firstRow;
+        private final double[] lnMeans = new double[columnCount * GROUP_SIZE];
+        private final byte[] regions = new byte[GROUP_SIZE];
+        private final double[] sigmas = new double[columnCount * GROUP_SIZE];
+        private int size;
+        /** The branch values of the current row */
+        private double[] treeLnMeans = new double[0];
+        private double[] treeMeans = new double[0];
+        private double[] treeSigmas = new double[0];
+
+        private Group(long firstRow) {
+            this.firstRow = firstRow;
+        }
+
+        /**
+         * Add the row for the last calculation.
+         *
+         * @param region  the region.
+         * @param gmmTree the logic tree.
+         * @throws UncheckedIOException if an I/O error occurs.
+         */
+        private void add(Region region, LogicTree<Gmm> gmmTree) {
+            fill();
+            regions[size] = (byte) region.ordinal();
+            for (int i = 0; i < gmmTree.size(); i++) {
+                int index = columnIndex[gmmTree.get(i).value().ordinal()] * GROUP_SIZE + size;
+                lnMeans[index] = treeLnMeans[i];
+                sigmas[index] = treeSigmas[i];
+            }
+            next();
+        }
+
+        /**
+         * Add a row without a result.
+         *
+         * @throws UncheckedIOException if an I/O error occurs.
+         */
+        public void addMissing() {
+            fill();
+            regions[size] = NO_REGION;
+            next();
+        }
+
+        /**
+         * Calculate the PGA value and add the row.
+         *
+         * @param log     the logger.
+         * @param region  the region.
+         * @param gmmTree the logic tree.
+         * @param mag     the magnitude.
+         * @param rJB     the Joyner-Boore distance.
+         * @param rx      the site to rupture trace distance.
+         * @param rRup    the rupture distance.
+         * @param vs30    the vs30 value.
+         * @param rupture the rupture or null if the hypocenter.
+         * @return the PGA value.
+         * @throws UncheckedIOException if an I/O error occurs.
+         */
+        public double calc(Logger log, Region region, LogicTree<Gmm> gmmTree, double mag, double rJB, double rx,
+                double rRup, double vs30, RuptureGeometry rupture) {
+            final int treeSize = gmmTree.size();
+            if (treeMeans.length < treeSize) {
+                treeMeans = new double[treeSize];
+                treeLnMeans = new double[treeSize];
+                treeSigmas = new double[treeSize];
+            }
+            double value = DeterministicSpectra.calcPga(log, gmmTree,
+                    DeterministicSpectra.createInput(mag, rJB, rx, rRup, vs30, rupture), treeMeans, treeLnMeans, treeSigmas);
+            add(region, gmmTree);
+            return value;
+        }
+
+        /**
+         * Fill the columns of the current row as not calculated.
+         */
+        private void fill() {
+            for (int c = 0; c < columnCount; c++) {
+                lnMeans[c * GROUP_SIZE + size] = Double.NEGATIVE_INFINITY;
+                sigmas[c * GROUP_SIZE + size] = Double.NaN;
+            }
+        }
+
+        /**
+         * Write the rows if any.
+         *
+         * @throws UncheckedIOException if an I/O error occurs.
+         */
+        public void flush() {
+            if (size == 0) {
+                return;
+            }
+            try {
+                write(this);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            firstRow += size;
+            size = 0;
+        }
+
+        /**
+         * Move to the next row, writing the rows if the group is full.
+         */
+        private void next() {
+            if (++size == GROUP_SIZE) {
+                flush();
+            }
+        }
+    }
+}
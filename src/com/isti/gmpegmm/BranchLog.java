@@ -0,0 +1,167 @@
+package com.isti.gmpegmm;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import gov.usgs.earthquake.nshmp.gmm.Gmm;
+
+/**
+ * Logs the logic tree branch results.
+ * <p>
+ * By default each branch is logged synchronously. In the asynchronous mode the
+ * branch records (primitive fields, no formatted text) are put on a bounded
+ * ring buffer and a background thread formats and logs them. When the buffer
+ * is full the record is dropped and counted so the calculation never blocks.
+ */
+public class BranchLog {
+    /** Asynchronous mode */
+    public static final String MODE_ASYNC = "async";
+    /** PGA Calculator branch log capacity key */
+    public static final String PGACALC_BRANCH_LOG_CAPACITY_KEY = "PGACALC_BRANCH_LOG_CAPACITY";
+    /** PGA Calculator branch log capacity text, rounded up to a power of two */
+    public static final String PGACALC_BRANCH_LOG_CAPACITY_TEXT = System
+            .getProperty(PGACALC_BRANCH_LOG_CAPACITY_KEY, "65536");
+    /** PGA Calculator branch log key */
+    public static final String PGACALC_BRANCH_LOG_KEY = "PGACALC_BRANCH_LOG";
+    /** PGA Calculator branch log text, {@link #MODE_ASYNC} or null for synchronous */
+    public static final String PGACALC_BRANCH_LOG_TEXT = System.getProperty(PGACALC_BRANCH_LOG_KEY);
+    private static final BranchLog ASYNC_LOG = MODE_ASYNC.equals(PGACALC_BRANCH_LOG_TEXT)
+            ? new BranchLog(Logger.getLogger(DeterministicSpectra.class.toString()),
+                    (int) UtilFns.parseDouble(PGACALC_BRANCH_LOG_CAPACITY_TEXT))
+            : null;
+    private static final Gmm[] GMMS = Gmm.values();
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Flush the asynchronous records, waiting until the buffer is empty.
+     */
+    public static void flush() {
+        if (ASYNC_LOG != null) {
+            ASYNC_LOG.drain();
+        }
+    }
+
+    /** @return the number of dropped records */
+    public static long getDropCount() {
+        return ASYNC_LOG != null ? ASYNC_LOG.drops.sum() : 0;
+    }
+
+    /**
+     * Log the branch result. The caller should first check that the logger is
+     * loggable at the info level.
+     *
+     * @param log    the logger.
+     * @param gmm    the ground motion model.
+     * @param weight the branch weight.
+     * @param mean   the branch mean.
+     */
+    public static void log(Logger log, Gmm gmm, double weight, double mean) {
+        if (ASYNC_LOG != null) {
+            ASYNC_LOG.offer(gmm.ordinal(), weight, mean);
+        } else {
+            log.info(format(gmm, weight, mean));
+        }
+    }
+
+    private static String format(Gmm gmm, double weight, double mean) {
+        return String.format("Gmm %s, Weight %f, Mean %.10f", gmm.name(), weight, mean);
+    }
+
+    private final LongAdder drops = new LongAdder();
+    private final int[] gmms;
+    private volatile long head;
+    private final Logger log;
+    private final int mask;
+    private final double[] means;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final double[] weights;
+
+    private BranchLog(Logger log, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.log = log;
+        mask = size - 1;
+        gmms = new int[size];
+        weights = new double[size];
+        means = new double[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        Thread thread = new Thread(this::run, BranchLog.class.getSimpleName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Wait until the consumer has taken all records offered before the call.
+     */
+    private void drain() {
+        long target = tail.get();
+        while (head < target) {
+            LockSupport.parkNanos(IDLE_NANOS);
+        }
+    }
+
+    /**
+     * Offer the record, dropping it if the buffer is full.
+     *
+     * @param gmm    the ground motion model ordinal.
+     * @param weight the branch weight.
+     * @param mean   the branch mean.
+     * @return true if the record was added, false if it was dropped.
+     */
+    private boolean offer(int gmm, double weight, double mean) {
+        long pos = tail.get();
+        int index;
+        for (;;) {
+            index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                drops.increment();
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+        gmms[index] = gmm;
+        weights[index] = weight;
+        means[index] = mean;
+        // publish the record
+        sequences.set(index, pos + 1);
+        return true;
+    }
+
+    /**
+     * Consume and log the records.
+     */
+    private void run() {
+        long pos = head;
+        for (;;) {
+            int index = (int) pos & mask;
+            if (sequences.get(index) != pos + 1) {
+                LockSupport.parkNanos(IDLE_NANOS);
+                continue;
+            }
+            Gmm gmm = GMMS[gmms[index]];
+            double weight = weights[index];
+            double mean = means[index];
+            // release the slot for the next lap
+            sequences.set(index, pos + mask + 1);
+            try {
+                log.info(format(gmm, weight, mean));
+            } catch (Exception ex) {
+            }
+            head = ++pos;
+        }
+    }
+}
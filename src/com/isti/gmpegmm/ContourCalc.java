@@ -0,0 +1,578 @@
+package com.isti.gmpegmm;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Logger;
+
+import gov.usgs.earthquake.nshmp.calc.Site;
+
+/**
+ * Calculates PGA contour lines for a single earthquake by adaptive refinement
+ * of a coarse grid.
+ * <p>
+ * The PGA values are calculated at the nodes of a coarse grid. A cell is split
+ * into four, up to {@link #PGACALC_CONTOUR_DEPTH_KEY} times, if its corner
+ * values straddle a contour level, if the ratio of its largest to smallest
+ * corner value is more than the {@link #PGACALC_CONTOUR_RATIO_KEY} ratio or if
+ * it contains the epicenter. The cells are refined in parallel on the common
+ * fork/join pool and a node shared by neighbouring cells is only calculated
+ * once.
+ * <p>
+ * The contours are traced with marching squares on the final cells, walking
+ * the boundary of each cell through every calculated node on it so that the
+ * contour crossings are the same on both sides of an edge between cells of
+ * different sizes. The crossings are interpolated in log PGA. Saddle cells
+ * are resolved with the mean of the corner values. The contours of each level
+ * are written as a GeoJSON MultiLineString feature and the calculated nodes
+ * are written as CSV lon,lat,value records in row order. The cells are traced
+ * in row order so the output does not depend on the number of threads.
+ */
+public class ContourCalc {
+    private static final String LOG_PREFIX = UtilFns.getLogPrefix(ContourCalc.class);
+    /** The final cell order: row, column and size */
+    private static final Comparator<int[]> LEAF_ORDER = Comparator.<int[]>comparingInt(c -> c[1])
+            .thenComparingInt(c -> c[0]).thenComparingInt(c -> c[2]);
+    /** Contour mode command line option */
+    public static final String CONTOUR_OPTION = "--contour";
+    /** Default output file name */
+    public static final String OUTPUT_DEFAULT = "pga-contours.geojson";
+    /** PGA Calculator contour depth key */
+    public static final String PGACALC_CONTOUR_DEPTH_KEY = "PGACALC_CONTOUR_DEPTH";
+    /** PGA Calculator contour depth text, the maximum number of cell splits */
+    public static final String PGACALC_CONTOUR_DEPTH_TEXT = System.getProperty(PGACALC_CONTOUR_DEPTH_KEY, "4");
+    /** PGA Calculator contour levels key */
+    public static final String PGACALC_CONTOUR_LEVELS_KEY = "PGACALC_CONTOUR_LEVELS";
+    /** PGA Calculator contour levels text, the comma separated levels in g */
+    public static final String PGACALC_CONTOUR_LEVELS_TEXT = System.getProperty(PGACALC_CONTOUR_LEVELS_KEY,
+            "0.01,0.02,0.05,0.1,0.2");
+    /** PGA Calculator contour ratio key */
+    public static final String PGACALC_CONTOUR_RATIO_KEY = "PGACALC_CONTOUR_RATIO";
+    /**
+     * PGA Calculator contour ratio text, a cell is split if the ratio of its
+     * largest to smallest corner value is more than the ratio
+     */
+    public static final String PGACALC_CONTOUR_RATIO_TEXT = System.getProperty(PGACALC_CONTOUR_RATIO_KEY, "1.5");
+    /** PGA Calculator contour samples key */
+    public static final String PGACALC_CONTOUR_SAMPLES_KEY = "PGACALC_CONTOUR_SAMPLES";
+    /** PGA Calculator contour samples text, the calculated nodes file */
+    public static final String PGACALC_CONTOUR_SAMPLES_TEXT = System.getProperty(PGACALC_CONTOUR_SAMPLES_KEY,
+            "pga-samples.csv");
+
+    /**
+     * Run the contour mode.
+     *
+     * @param args the program arguments: {@link #CONTOUR_OPTION} eqMag eqLon
+     *             eqLat eqDepth minLon minLat maxLon maxLat spacing [vs30]
+     * @throws IOException if an I/O error occurs.
+     */
+    public static void run(String[] args) throws IOException {
+        if (args.length < 10) {
+            throw new IllegalArgumentException("Invalid number of arguments: " + args.length);
+        }
+        double mag = UtilFns.checkMagnitude(args[1]);
+        double eqLon = UtilFns.checkLongitude(args[2]);
+        double eqLat = UtilFns.checkLatitude(args[3]);
+        double depth = UtilFns.checkDepth(args[4]);
+        double minLon = UtilFns.checkLongitude(args[5]);
+        double minLat = UtilFns.checkLatitude(args[6]);
+        double maxLon = UtilFns.checkLongitude(args[7]);
+        double maxLat = UtilFns.checkLatitude(args[8]);
+        double spacing = UtilFns.parseDouble(args[9]);
+        double vs30 = args.length > 10 ? UtilFns.parseDouble(args[10])
+                : Vs30Raster.getInstance() != null ? Double.NaN : Site.VS_30_DEFAULT;
+        String output = DeterministicSpectra.PGACALC_OUTPUT_PATH_TEXT != null
+                ? DeterministicSpectra.PGACALC_OUTPUT_PATH_TEXT
+                : OUTPUT_DEFAULT;
+        ContourCalc contour = new ContourCalc(new GridCalc(mag, eqLon, eqLat, depth, minLon, minLat, maxLon, maxLat,
+                spacing, vs30), eqLon, eqLat, minLon, minLat, spacing,
+                ExceedanceCalc.parseImls(PGACALC_CONTOUR_LEVELS_TEXT),
+                (int) UtilFns.parseDouble(PGACALC_CONTOUR_DEPTH_TEXT),
+                UtilFns.parseDouble(PGACALC_CONTOUR_RATIO_TEXT));
+        contour.write(Paths.get(output), Paths.get(PGACALC_CONTOUR_SAMPLES_TEXT));
+    }
+
+    private final int cellCols;
+    private final int cellRows;
+    private final double eqLat;
+    private final double eqLon;
+    private final GridCalc grid;
+    /** The final cells (column, row and size in fine units) */
+    private final Queue<int[]> leaves = new ConcurrentLinkedQueue<>();
+    private final double[] levels;
+    private final double[] lnLevels;
+    private final double minLat;
+    private final double minLon;
+    private final int nodeCols;
+    private final double ratio;
+    /** The calculated values by node key */
+    private final Map<Long, Float> samples = new ConcurrentHashMap<>();
+    /** The size of a coarse cell in fine units */
+    private final int scale;
+    private final double spacing;
+
+    /**
+     * Create the contour calculator.
+     *
+     * @param grid     the coarse grid.
+     * @param eqLon    the earthquake longitude.
+     * @param eqLat    the earthquake latitude.
+     * @param minLon   the minimum longitude of the grid.
+     * @param minLat   the minimum latitude of the grid.
+     * @param spacing  the coarse grid spacing in decimal degrees.
+     * @param levels   the contour levels in g.
+     * @param maxDepth the maximum number of cell splits.
+     * @param ratio    the largest to smallest corner value ratio to split a
+     *                 cell.
+     */
+    public ContourCalc(GridCalc grid, double eqLon, double eqLat, double minLon, double minLat, double spacing,
+            double[] levels, int maxDepth, double ratio) {
+        if (grid.getNcols() < 2 || grid.getNrows() < 2) {
+            throw new IllegalArgumentException("the grid must have at least 2 rows and columns");
+        }
+        if (maxDepth < 0 || maxDepth > 16) {
+            throw new IllegalArgumentException("invalid contour depth (" + maxDepth + ")");
+        }
+        if (!(ratio > 1.0)) {
+            throw new IllegalArgumentException("invalid contour ratio (" + ratio + ")");
+        }
+        this.grid = grid;
+        this.eqLon = eqLon;
+        this.eqLat = eqLat;
+        this.minLon = minLon;
+        this.minLat = minLat;
+        this.levels = levels.clone();
+        this.ratio = ratio;
+        lnLevels = new double[levels.length];
+        for (int i = 0; i < levels.length; i++) {
+            lnLevels[i] = Math.log(levels[i]);
+        }
+        scale = 1 << maxDepth;
+        this.spacing = spacing / scale;
+        cellCols = grid.getNcols() - 1;
+        cellRows = grid.getNrows() - 1;
+        nodeCols = cellCols * scale + 1;
+    }
+
+    /**
+     * Calculate the values and refine the cells.
+     */
+    public void calc() {
+        int cells = cellCols * cellRows;
+        int threshold = Math.max(1, cells / (ForkJoinPool.getCommonPoolParallelism() * 4));
+        ForkJoinPool.commonPool().invoke(new CellRangeTask(0, cells, threshold));
+        // in row, column and size order so the output does not depend on the
+        // order the tasks finished
+        int[][] sorted = leaves.toArray(new int[leaves.size()][]);
+        Arrays.sort(sorted, LEAF_ORDER);
+        leaves.clear();
+        Collections.addAll(leaves, sorted);
+    }
+
+    /**
+     * Trace the contours of the level.
+     *
+     * @param level the level index.
+     * @return the polylines, each with the longitude and latitude of each point.
+     */
+    public List<double[]> contour(int level) {
+        final double lnLevel = lnLevels[level];
+        // the crossings of each final cell, paired into segments
+        final List<Crossing> segments = new ArrayList<>();
+        final long[] boundary = new long[4 * scale];
+        final List<Crossing> crossings = new ArrayList<>();
+        for (int[] cell : leaves) {
+            int n = getBoundary(cell[0], cell[1], cell[2], boundary);
+            if (n < 0) {
+                continue;
+            }
+            crossings.clear();
+            boolean firstUp = false;
+            for (int k = 0; k < n; k++) {
+                long a = boundary[k];
+                long b = boundary[(k + 1) % n];
+                boolean aboveA = getValue(a) >= levels[level];
+                boolean aboveB = getValue(b) >= levels[level];
+                if (aboveA != aboveB) {
+                    if (crossings.isEmpty()) {
+                        firstUp = aboveB;
+                    }
+                    crossings.add(new Crossing(a, b));
+                }
+            }
+            if (crossings.isEmpty()) {
+                continue;
+            }
+            // pair each crossing with the next one so that the arcs between them
+            // are below the level if the center is above and above otherwise
+            float v00 = getValue(getKey(cell[0], cell[1]));
+            float v10 = getValue(getKey(cell[0] + cell[2], cell[1]));
+            float v01 = getValue(getKey(cell[0], cell[1] + cell[2]));
+            float v11 = getValue(getKey(cell[0] + cell[2], cell[1] + cell[2]));
+            boolean centerAbove = (v00 + v10 + v01 + v11) * 0.25 >= levels[level];
+            int offset = firstUp == centerAbove ? 1 : 0;
+            int m = crossings.size();
+            for (int k = 0; k < m; k += 2) {
+                segments.add(crossings.get((k + offset) % m));
+                segments.add(crossings.get((k + offset + 1) % m));
+            }
+        }
+        // chain the segments, the crossings are shared by at most two segments
+        final Map<Crossing, int[]> ends = new HashMap<>();
+        for (int s = 0; s < segments.size(); s++) {
+            int[] e = ends.computeIfAbsent(segments.get(s), k -> new int[] { -1, -1 });
+            e[e[0] < 0 ? 0 : 1] = s;
+        }
+        final boolean[] used = new boolean[segments.size()];
+        final List<double[]> polylines = new ArrayList<>();
+        // the open polylines start at a crossing with one segment
+        for (int pass = 0; pass < 2; pass++) {
+            for (int s = 0; s < segments.size(); s++) {
+                if (used[s] || (pass == 0 && ends.get(segments.get(s))[1] >= 0)) {
+                    continue;
+                }
+                List<Crossing> points = new ArrayList<>();
+                Crossing start = segments.get(s);
+                points.add(start);
+                int segment = s;
+                while (true) {
+                    used[segment] = true;
+                    used[segment ^ 1] = true;
+                    Crossing next = segments.get(segment ^ 1);
+                    points.add(next);
+                    int[] e = ends.get(next);
+                    int other = e[0] == (segment ^ 1) ? e[1] : e[0];
+                    if (other < 0 || used[other]) {
+                        break;
+                    }
+                    segment = other;
+                }
+                double[] polyline = new double[points.size() * 2];
+                for (int p = 0; p < points.size(); p++) {
+                    getPoint(points.get(p), lnLevel, polyline, p * 2);
+                }
+                polylines.add(polyline);
+            }
+        }
+        return polylines;
+    }
+
+    /**
+     * Get the nodes on the boundary of the cell in counterclockwise order.
+     *
+     * @param col      the column in fine units.
+     * @param row      the row in fine units.
+     * @param size     the cell size in fine units.
+     * @param boundary the node keys.
+     * @return the number of nodes or -1 if a node value is NaN.
+     */
+    private int getBoundary(int col, int row, int size, long[] boundary) {
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            n = addBoundary(col + i, row, boundary, n);
+        }
+        for (int i = 0; i < size; i++) {
+            n = addBoundary(col + size, row + i, boundary, n);
+        }
+        for (int i = size; i > 0; i--) {
+            n = addBoundary(col + i, row + size, boundary, n);
+        }
+        for (int i = size; i > 0; i--) {
+            n = addBoundary(col, row + i, boundary, n);
+        }
+        for (int k = 0; k < n; k++) {
+            if (Float.isNaN(getValue(boundary[k]))) {
+                return -1;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Add the node to the boundary if it was calculated.
+     *
+     * @param col      the column in fine units.
+     * @param row      the row in fine units.
+     * @param boundary the node keys.
+     * @param n        the number of nodes.
+     * @return the new number of nodes.
+     */
+    private int addBoundary(int col, int row, long[] boundary, int n) {
+        long key = getKey(col, row);
+        if (samples.containsKey(key)) {
+            boundary[n++] = key;
+        }
+        return n;
+    }
+
+    /** @return the number of calculated nodes */
+    public int getEvaluationCount() {
+        return samples.size();
+    }
+
+    /**
+     * Get the node key.
+     *
+     * @param col the column in fine units.
+     * @param row the row in fine units.
+     * @return the key.
+     */
+    private long getKey(int col, int row) {
+        return (long) row * nodeCols + col;
+    }
+
+    /**
+     * Get the contour point for the crossing.
+     *
+     * @param crossing the crossing.
+     * @param lnLevel  the log level.
+     * @param out      the longitude and latitude.
+     * @param offset   the offset in the output.
+     */
+    private void getPoint(Crossing crossing, double lnLevel, double[] out, int offset) {
+        double lnA = Math.log(getValue(crossing.a));
+        double lnB = Math.log(getValue(crossing.b));
+        double t = (lnLevel - lnA) / (lnB - lnA);
+        double colA = crossing.a % nodeCols;
+        double rowA = crossing.a / nodeCols;
+        double colB = crossing.b % nodeCols;
+        double rowB = crossing.b / nodeCols;
+        out[offset] = minLon + (colA + t * (colB - colA)) * spacing;
+        out[offset + 1] = minLat + (rowA + t * (rowB - rowA)) * spacing;
+    }
+
+    /**
+     * Get the calculated value.
+     *
+     * @param key the node key.
+     * @return the value.
+     */
+    private float getValue(long key) {
+        return samples.get(key);
+    }
+
+    /**
+     * Calculate the value at the node if not already calculated.
+     *
+     * @param col the column in fine units.
+     * @param row the row in fine units.
+     * @return the value or NaN if the region is not supported.
+     */
+    private float sample(int col, int row) {
+        return samples.computeIfAbsent(getKey(col, row),
+                k -> grid.calcNode(minLat + row * spacing, minLon + col * spacing));
+    }
+
+    /**
+     * Determine if the cell should be split.
+     *
+     * @param col  the column in fine units.
+     * @param row  the row in fine units.
+     * @param size the cell size in fine units.
+     * @return true if the cell should be split.
+     */
+    private boolean shouldSplit(int col, int row, int size) {
+        // the corners are needed for the contours even if the cell is not split
+        float v00 = sample(col, row);
+        float v10 = sample(col + size, row);
+        float v01 = sample(col, row + size);
+        float v11 = sample(col + size, row + size);
+        if (size == 1) {
+            return false;
+        }
+        double lon0 = minLon + col * spacing;
+        double lat0 = minLat + row * spacing;
+        double lon1 = minLon + (col + size) * spacing;
+        double lat1 = minLat + (row + size) * spacing;
+        if (eqLon >= lon0 && eqLon <= lon1 && eqLat >= lat0 && eqLat <= lat1) {
+            return true;
+        }
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (float v : new float[] { v00, v10, v01, v11 }) {
+            if (!Float.isNaN(v)) {
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+        }
+        if (!(min <= max)) {
+            return false;
+        }
+        if (max > min * ratio) {
+            return true;
+        }
+        for (double level : levels) {
+            if (min < level && max >= level) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Calculate the values, trace the contours and write the contours and the
+     * calculated nodes.
+     *
+     * @param contourPath the contour GeoJSON path.
+     * @param samplesPath the calculated nodes CSV path.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void write(Path contourPath, Path samplesPath) throws IOException {
+        final Logger log = Logger.getLogger(DeterministicSpectra.class.toString());
+        long start = System.nanoTime();
+        calc();
+        long fineNodes = (long) nodeCols * (cellRows * scale + 1);
+        log.info(String.format("%s%d cells, %d nodes calculated (%d for the fine grid) in %d ms", LOG_PREFIX,
+                leaves.size(), samples.size(), fineNodes, (System.nanoTime() - start) / 1000000));
+        try (Writer writer = new BufferedWriter(
+                new OutputStreamWriter(Files.newOutputStream(contourPath), UtilFns.CHARSET),
+                UtilFns.DEFAULT_BUFFER_SIZE)) {
+            StringBuilder sb = new StringBuilder(64);
+            writer.write("{\"type\":\"FeatureCollection\",\"features\":[");
+            for (int level = 0; level < levels.length; level++) {
+                List<double[]> polylines = contour(level);
+                log.info(String.format("%slevel=%s, %d lines", LOG_PREFIX, levels[level], polylines.size()));
+                writer.write(level == 0 ? "\n" : ",\n");
+                writer.write("{\"type\":\"Feature\",\"properties\":{\"pga\":" + levels[level]
+                        + "},\"geometry\":{\"type\":\"MultiLineString\",\"coordinates\":[");
+                for (int p = 0; p < polylines.size(); p++) {
+                    double[] polyline = polylines.get(p);
+                    writer.write(p == 0 ? "[" : ",[");
+                    for (int i = 0; i < polyline.length; i += 2) {
+                        sb.setLength(0);
+                        if (i != 0) {
+                            sb.append(',');
+                        }
+                        sb.append(String.format("[%f,%f]", polyline[i], polyline[i + 1]));
+                        writer.append(sb);
+                    }
+                    writer.write("]");
+                }
+                writer.write("]}}");
+            }
+            writer.write("\n]}\n");
+        }
+        try (Writer writer = new BufferedWriter(
+                new OutputStreamWriter(Files.newOutputStream(samplesPath), UtilFns.CHARSET),
+                UtilFns.DEFAULT_BUFFER_SIZE)) {
+            StringBuilder sb = new StringBuilder(64);
+            // in key order so the output does not depend on the calculation order
+            for (Map.Entry<Long, Float> e : new TreeMap<>(samples).entrySet()) {
+                long key = e.getKey();
+                sb.setLength(0);
+                sb.append(String.format("%f,%f,", minLon + key % nodeCols * spacing,
+                        minLat + key / nodeCols * spacing));
+                if (Float.isNaN(e.getValue())) {
+                    if (DeterministicSpectra.PGACALC_NO_RESULT_TEXT != null) {
+                        sb.append(DeterministicSpectra.PGACALC_NO_RESULT_TEXT);
+                    }
+                } else {
+                    sb.append(String.format("%f", e.getValue()));
+                }
+                writer.append(sb).append('\n');
+            }
+        }
+    }
+
+    /**
+     * Refines a cell, splitting it into four cells calculated in parallel.
+     */
+    private class CellTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int col;
+        private final int row;
+        private final int size;
+
+        CellTask(int col, int row, int size) {
+            this.col = col;
+            this.row = row;
+            this.size = size;
+        }
+
+        @Override
+        protected void compute() {
+            if (!shouldSplit(col, row, size)) {
+                leaves.add(new int[] { col, row, size });
+                return;
+            }
+            int half = size / 2;
+            invokeAll(new CellTask(col, row, half), new CellTask(col + half, row, half),
+                    new CellTask(col, row + half, half), new CellTask(col + half, row + half, half));
+        }
+    }
+
+    /**
+     * Refines a range of the coarse cells.
+     */
+    private class CellRangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int threshold;
+        private final int to;
+
+        CellRangeTask(int from, int to, int threshold) {
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > threshold) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new CellRangeTask(from, mid, threshold), new CellRangeTask(mid, to, threshold));
+                return;
+            }
+            for (int cell = from; cell < to; cell++) {
+                new CellTask(cell % cellCols * scale, cell / cellCols * scale, scale).invoke();
+            }
+        }
+    }
+
+    /**
+     * A contour crossing on the segment between two adjacent nodes on a cell
+     * boundary, the node keys are in increasing order.
+     */
+    private static final class Crossing {
+        private final long a;
+        private final long b;
+
+        Crossing(long a, long b) {
+            this.a = Math.min(a, b);
+            this.b = Math.max(a, b);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Crossing)) {
+                return false;
+            }
+            Crossing c = (Crossing) o;
+            return a == c.a && b == c.b;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(a * 31 + b);
+        }
+    }
+}
@@ -1,10 +1,15 @@
 package com.isti.gmpegmm;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import gov.usgs.earthquake.nshmp.calc.Site;
-import gov.usgs.earthquake.nshmp.geo.Location;
 import gov.usgs.earthquake.nshmp.gmm.Gmm;
 import gov.usgs.earthquake.nshmp.gmm.GmmInput;
 import gov.usgs.earthquake.nshmp.gmm.GmmInput.Builder;
@@ -39,79 +44,366 @@ public class DeterministicSpectra {
     public static final String PGACALC_OUTPUT_PATH_KEY = "PGACALC_OUTPUT_PATH";
     /** PGA Calculator output path text or null for default */
     public static final String PGACALC_OUTPUT_PATH_TEXT = System.getProperty(PGACALC_OUTPUT_PATH_KEY);
+    /** Command line option prefix */
+    public static final String OPTION_PREFIX = "--";
     /** PGA Calculator Version */
     public static final String PGACALC_VERSION = "2.0.078";
 
-    private static double calcPga(Logger log, LogicTree<Gmm> gmmTree, double mag, double rJB, double rx, double rRup,
+    /** PGA Calculator branch executor key */
+    public static final String PGACALC_BRANCH_EXECUTOR_KEY = "PGACALC_BRANCH_EXECUTOR";
+    /**
+     * PGA Calculator branch executor text, {@link #BRANCH_EXECUTOR_FORKJOIN} or
+     * {@link #BRANCH_EXECUTOR_VIRTUAL} to evaluate the branches in parallel or
+     * null to evaluate them sequentially
+     */
+    public static final String PGACALC_BRANCH_EXECUTOR_TEXT = System.getProperty(PGACALC_BRANCH_EXECUTOR_KEY);
+    /** PGA Calculator branch parallelism key */
+    public static final String PGACALC_BRANCH_PARALLELISM_KEY = "PGACALC_BRANCH_PARALLELISM";
+    /**
+     * PGA Calculator branch parallelism text for the fork/join executor or null
+     * for the common pool
+     */
+    public static final String PGACALC_BRANCH_PARALLELISM_TEXT = System.getProperty(PGACALC_BRANCH_PARALLELISM_KEY);
+    /** Fork/join branch executor */
+    public static final String BRANCH_EXECUTOR_FORKJOIN = "forkjoin";
+    /** Virtual thread branch executor */
+    public static final String BRANCH_EXECUTOR_VIRTUAL = "virtual";
+    private static final ExecutorService BRANCH_EXECUTOR = createBranchExecutor();
+
+    private static double calcMean(Gmm gmm, GmmInput input) {
+        boolean timing = Metrics.isGmmTiming();
+        long start = timing ? System.nanoTime() : 0L;
+        LogicTree<GroundMotion> gmTree = GmmCache.getInstance(gmm, Imt.PGA).calc(input);
+        double mean = Math.exp(GroundMotions.combine(gmTree).mean());
+        if (timing) {
+            Metrics.recordGmm(gmm, System.nanoTime() - start);
+        }
+        return mean;
+    }
+
+    /**
+     * Calculate the mean and keep the log mean and sigma.
+     * 
+     * @param gmm     the ground motion model.
+     * @param input   the input.
+     * @param lnMeans the log means.
+     * @param sigmas  the sigmas.
+     * @param index   the index for the log mean and sigma.
+     * @return the mean.
+     */
+    private static double calcMean(Gmm gmm, GmmInput input, double[] lnMeans, double[] sigmas, int index) {
+        boolean timing = Metrics.isGmmTiming();
+        long start = timing ? System.nanoTime() : 0L;
+        GroundMotion gm = GroundMotions.combine(GmmCache.getInstance(gmm, Imt.PGA).calc(input));
+        lnMeans[index] = gm.mean();
+        sigmas[index] = gm.sigma();
+        double mean = Math.exp(lnMeans[index]);
+        if (timing) {
+            Metrics.recordGmm(gmm, System.nanoTime() - start);
+        }
+        return mean;
+    }
+
+    /**
+     * Calculate the PGA value.
+     * 
+     * @param log     the logger.
+     * @param gmmTree the logic tree.
+     * @param mag     the magnitude.
+     * @param rJB     the Joyner-Boore distance.
+     * @param rx      the site to rupture trace distance.
+     * @param rRup    the rupture distance.
+     * @param vs30    the vs30 value.
+     * @return the PGA value.
+     */
+    static double calcPga(Logger log, LogicTree<Gmm> gmmTree, double mag, double rJB, double rx, double rRup,
             double vs30) {
-        Builder builder = GmmInput.builder().withDefaults();
-        builder.mag(mag);
-        builder.rJB(rJB);
-        builder.rX(rx);
-        builder.rRup(rRup);
-        builder.vs30(vs30);
-        GmmInput input = builder.build();
+        return calcPga(log, gmmTree, mag, rJB, rx, rRup, vs30, null);
+    }
+
+    /**
+     * Calculate the PGA value.
+     * 
+     * @param log     the logger.
+     * @param gmmTree the logic tree.
+     * @param mag     the magnitude.
+     * @param rJB     the Joyner-Boore distance.
+     * @param rx      the site to rupture trace distance.
+     * @param rRup    the rupture distance.
+     * @param vs30    the vs30 value.
+     * @param rupture the rupture or null if the hypocenter.
+     * @return the PGA value.
+     */
+    static double calcPga(Logger log, LogicTree<Gmm> gmmTree, double mag, double rJB, double rx, double rRup,
+            double vs30, RuptureGeometry rupture) {
+        GmmInput input = createInput(mag, rJB, rx, rRup, vs30, rupture);
+        final int size = gmmTree.size();
+        final double[] means = new double[size];
+        if (BRANCH_EXECUTOR != null && size > 1) {
+            calcMeans(gmmTree, input, means);
+        } else {
+            for (int i = 0; i < size; i++) {
+                means[i] = calcMean(gmmTree.get(i).value(), input);
+            }
+        }
+        return combine(log, gmmTree, means);
+    }
+
+    /**
+     * Calculate the PGA value on the calling thread without allocating.
+     * 
+     * @param log     the logger.
+     * @param gmmTree the logic tree.
+     * @param input   the input.
+     * @param means   the branch means, at least the size of the logic tree.
+     * @return the PGA value.
+     */
+    static double calcPga(Logger log, LogicTree<Gmm> gmmTree, GmmInput input, double[] means) {
+        final int size = gmmTree.size();
+        for (int i = 0; i < size; i++) {
+            means[i] = calcMean(gmmTree.get(i).value(), input);
+        }
+        return combine(log, gmmTree, means);
+    }
+
+    /**
+     * Calculate the PGA value on the calling thread and keep the log mean and
+     * sigma of each branch.
+     * 
+     * @param log     the logger.
+     * @param gmmTree the logic tree.
+     * @param input   the input.
+     * @param means   the branch means, at least the size of the logic tree.
+     * @param lnMeans the branch log means, at least the size of the logic tree.
+     * @param sigmas  the branch sigmas, at least the size of the logic tree.
+     * @return the PGA value.
+     */
+    static double calcPga(Logger log, LogicTree<Gmm> gmmTree, GmmInput input, double[] means, double[] lnMeans,
+            double[] sigmas) {
+        final int size = gmmTree.size();
+        for (int i = 0; i < size; i++) {
+            means[i] = calcMean(gmmTree.get(i).value(), input, lnMeans, sigmas, i);
+        }
+        return combine(log, gmmTree, means);
+    }
+
+    /**
+     * Combine the branch means.
+     * 
+     * @param log     the logger.
+     * @param gmmTree the logic tree.
+     * @param means   the branch means.
+     * @return the weighted mean.
+     */
+    private static double combine(Logger log, LogicTree<Gmm> gmmTree, double[] means) {
+        final int size = gmmTree.size();
+        // reduce in branch order so the result does not depend on the executor
+        final boolean logBranches = log.isLoggable(Level.INFO);
         double value = 0.0;
-        for (Branch<Gmm> branch : gmmTree) {
-            Gmm gmm = branch.value();
+        for (int i = 0; i < size; i++) {
+            Branch<Gmm> branch = gmmTree.get(i);
             double weight = branch.weight();
-            LogicTree<GroundMotion> gmTree = gmm.instance(Imt.PGA).calc(input);
-            double mean = Math.exp(GroundMotions.combine(gmTree).mean());
+            double mean = means[i];
             value += weight * mean;
-            log.info(String.format("Gmm %s, Weight %f, Mean %.10f", gmm.name(), weight, mean));
+            if (logBranches) {
+                BranchLog.log(log, branch.value(), weight, mean);
+            }
         }
         return value;
     }
 
-    private static double calcPga(String[] args) throws FileNotFoundException {
-        if (args.length < 7) {
-            throw new IllegalArgumentException("Invalid number of arguments: " + args.length);
+    /**
+     * Calculate the branch means on the branch executor, the first branch is
+     * calculated on the calling thread.
+     * 
+     * @param gmmTree the logic tree.
+     * @param input   the input.
+     * @param means   the branch means.
+     */
+    private static void calcMeans(LogicTree<Gmm> gmmTree, GmmInput input, double[] means) {
+        final int size = gmmTree.size();
+        final Future<?>[] futures = new Future<?>[size];
+        for (int i = 1; i < size; i++) {
+            final int index = i;
+            futures[i] = BRANCH_EXECUTOR.submit(() -> {
+                means[index] = calcMean(gmmTree.get(index).value(), input);
+            });
         }
-        final Logger log = Logger.getLogger(DeterministicSpectra.class.toString());
-        double depth, lat, lon, rJB, rx;
-        String siteName = args[0];
-        String siteLonText = args[1];
-        String siteLatText = args[2];
-        String eqMagText = args[3];
-        String eqLonText = args[4];
-        String eqLatText = args[5];
-        String eqDepthText = args[6];
-        double vs30 = Site.VS_30_DEFAULT;
-        if (args.length > 7) {
+        means[0] = calcMean(gmmTree.get(0).value(), input);
+        for (int i = 1; i < size; i++) {
             try {
-                vs30 = Double.parseDouble(args[7]);
-            } catch (Exception ex) {
-                throw new IllegalArgumentException("invalid vs30 argument (" + args[7] + ")");
+                futures[i].get();
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IllegalStateException(cause);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
+    /**
+     * Create the branch executor.
+     * 
+     * @return the branch executor or null if the branches are evaluated
+     *         sequentially.
+     */
+    private static ExecutorService createBranchExecutor() {
+        if (BRANCH_EXECUTOR_VIRTUAL.equals(PGACALC_BRANCH_EXECUTOR_TEXT)) {
+            ExecutorService executor = UtilFns.newVirtualThreadExecutor();
+            if (executor != null) {
+                return executor;
             }
+        } else if (!BRANCH_EXECUTOR_FORKJOIN.equals(PGACALC_BRANCH_EXECUTOR_TEXT)) {
+            return null;
         }
+        if (PGACALC_BRANCH_PARALLELISM_TEXT != null) {
+            return new ForkJoinPool((int) UtilFns.parseDouble(PGACALC_BRANCH_PARALLELISM_TEXT));
+        }
+        return ForkJoinPool.commonPool();
+    }
 
-        double mag = UtilFns.checkMagnitude(eqMagText);
-        lon = UtilFns.checkLongitude(siteLonText);
-        lat = UtilFns.checkLatitude(siteLatText);
-        Region region = Region.getRegion(lat, lon);
-        switch (region) {
-        case CEUS:
-        case COUS:
-        case WUS:
-            break;
-        default:
-            throw new IllegalArgumentException("region is not supported: " + region);
-        }
-
-        Location siteLocation = UtilFns.createLocation(lat, lon);
-        lon = UtilFns.checkLongitude(eqLonText);
-        lat = UtilFns.checkLatitude(eqLatText);
-        depth = UtilFns.checkDepth(eqDepthText);
-        Location eqLocation = UtilFns.createLocation(lat, lon, depth);
-
-        double distance = UtilFns.calcDistance(siteLocation, eqLocation);
-        rJB = distance;
-        rx = distance;
-        double rRup = UtilFns.calcDistanceToRupture(distance, depth);
+    /**
+     * Calculate the PGA value for the scenario.
+     * 
+     * @param log      the logger.
+     * @param scenario the scenario.
+     * @return the PGA value.
+     */
+    static double calcPga(Logger log, Scenario scenario) {
+        return calcPga(log, scenario, null);
+    }
+
+    /**
+     * Calculate the PGA value for the scenario.
+     * 
+     * @param log      the logger.
+     * @param scenario the scenario.
+     * @param group    the branch columns group to add the scenario to or null
+     *                 if none, the result cache is not used if specified.
+     * @return the PGA value.
+     */
+    static double calcPga(Logger log, Scenario scenario, BranchColumns.Group group) {
+        long start = System.nanoTime();
+        Region region = scenario.getRegion();
+        double mag = scenario.getMag();
+        double vs30 = scenario.getVs30();
+        double[] distances = new double[3];
+        RuptureGeometry rupture = scenario.calcDistances(distances);
+        double rJB = distances[0];
+        double rx = distances[1];
+        double rRup = distances[2];
         LogicTree<Gmm> gmmTree = GmmUtil.getGmmTree(region);
-        log.info(String.format("site=%s, region=%s, mag=%f, depth=%f, rJB=%f, rX=%f, rRup=%f, vs30=%f", siteName,
-                region.toString(), mag, depth, rJB, rx, rRup, vs30));
-        return calcPga(log, gmmTree, mag, rJB, rx, rRup, vs30);
+        if (log.isLoggable(Level.INFO)) {
+            log.info(scenario.toLogString(distances));
+        }
+        ResultCache cache = ResultCache.getInstance();
+        double value;
+        try {
+            if (group != null) {
+                value = group.calc(log, region, gmmTree, mag, rJB, rx, rRup, vs30, rupture);
+            } else if (cache != null) {
+                value = cache.get(region, mag, rJB, rx, rRup, vs30, rupture != null ? rupture.getZTop() : Double.NaN,
+                        (m, j, x, r, v) -> calcPga(log, gmmTree, m, j, x, r, v, rupture));
+            } else {
+                value = calcPga(log, gmmTree, mag, rJB, rx, rRup, vs30, rupture);
+            }
+        } catch (RuntimeException ex) {
+            Metrics.recordError(Metrics.ErrorCause.CALCULATION);
+            throw ex;
+        }
+        Metrics.recordRequest(region, System.nanoTime() - start);
+        return value;
+    }
+
+    /**
+     * Create the ground motion model input.
+     * 
+     * @param mag  the magnitude.
+     * @param rJB  the Joyner-Boore distance.
+     * @param rx   the site to rupture trace distance.
+     * @param rRup the rupture distance.
+     * @param vs30 the vs30 value.
+     * @return the input.
+     */
+    static GmmInput createInput(double mag, double rJB, double rx, double rRup, double vs30) {
+        return createInput(mag, rJB, rx, rRup, vs30, null);
+    }
+
+    /**
+     * Create the ground motion model input.
+     * 
+     * @param mag     the magnitude.
+     * @param rJB     the Joyner-Boore distance.
+     * @param rx      the site to rupture trace distance.
+     * @param rRup    the rupture distance.
+     * @param vs30    the vs30 value.
+     * @param rupture the rupture for the dip, width and depth to the top of the
+     *                rupture or null for the defaults.
+     * @return the input.
+     */
+    static GmmInput createInput(double mag, double rJB, double rx, double rRup, double vs30,
+            RuptureGeometry rupture) {
+        Builder builder = GmmInput.builder().withDefaults();
+        builder.mag(mag);
+        builder.rJB(rJB);
+        builder.rX(rx);
+        builder.rRup(rRup);
+        builder.vs30(vs30);
+        if (rupture != null) {
+            builder.dip(rupture.getDip());
+            builder.width(rupture.getWidth());
+            builder.zTor(rupture.getZTop());
+        }
+        return builder.build();
+    }
+
+    private static double calcPga(String[] args) throws FileNotFoundException {
+        final Logger log = Logger.getLogger(DeterministicSpectra.class.toString());
+        return calcPga(log, Scenario.parse(args));
+    }
+
+    /**
+     * Run the mode selected by the first program argument.
+     * 
+     * @param args the program arguments.
+     * @throws IOException if an I/O error occurs.
+     */
+    private static void runMode(String[] args) throws IOException {
+        String option = args[0];
+        if (BatchMode.BATCH_OPTION.equals(option)) {
+            BatchMode.run(args);
+        } else if (PgaServer.SERVER_OPTION.equals(option)) {
+            PgaServer.run(args);
+        } else if (GridCalc.GRID_OPTION.equals(option)) {
+            GridCalc.run(args);
+        } else if (PgaTable.TABLE_OPTION.equals(option) || PgaTable.TABLE_BUILD_OPTION.equals(option)) {
+            PgaTable.run(args);
+        } else if (SpectrumCalc.SPECTRUM_OPTION.equals(option)) {
+            SpectrumCalc.run(args);
+        } else if (SiteCatalog.CATALOG_BUILD_OPTION.equals(option) || SiteCatalog.SITES_OPTION.equals(option)) {
+            SiteCatalog.run(args);
+        } else if (Vs30Raster.VS30_BUILD_OPTION.equals(option)) {
+            Vs30Raster.run(args);
+        } else if (EventWatcher.WATCH_OPTION.equals(option)) {
+            EventWatcher.run(args);
+        } else if (ThresholdQuery.THRESHOLD_OPTION.equals(option)) {
+            ThresholdQuery.run(args);
+        } else if (ExceedanceCalc.EXCEEDANCE_OPTION.equals(option)) {
+            ExceedanceCalc.run(args);
+        } else if (BranchColumns.REWEIGHT_OPTION.equals(option)) {
+            BranchColumns.run(args);
+        } else if (SampleCalc.SAMPLE_OPTION.equals(option)) {
+            SampleCalc.run(args);
+        } else if (ContourCalc.CONTOUR_OPTION.equals(option)) {
+            ContourCalc.run(args);
+        } else {
+            throw new IllegalArgumentException("unknown option: " + option);
+        }
     }
 
     /**
@@ -127,13 +419,33 @@ public class DeterministicSpectra {
         UtilFns.loggingInit();
         final Logger log = Logger.getLogger(DeterministicSpectra.class.toString());
         log.info(LOG_PREFIX + " v" + PGACALC_VERSION);
+        if (GmmCache.PGACALC_GMM_WARMUP) {
+            GmmCache.warmUp();
+        }
+        if (Metrics.PGACALC_METRICS) {
+            Metrics.registerMBean();
+        }
+        if (args[0].startsWith(OPTION_PREFIX)) {
+            try {
+                runMode(args);
+            } catch (Exception ex) {
+                log.warning(LOG_PREFIX + ex.toString());
+                printUsage(System.err);
+                BranchLog.flush();
+                System.exit(2);
+            }
+            BranchLog.flush();
+            return;
+        }
         String value = PGACALC_NO_RESULT_TEXT;
         try {
             value = String.format("%f", calcPga(args));
             log.info(String.format("%sPGA=%s", LOG_PREFIX, value));
+            BranchLog.flush();
         } catch (Exception ex) {
             log.warning(LOG_PREFIX + ex.toString());
             printUsage(System.err);
+            BranchLog.flush();
             System.exit(2);
             return;
         }
@@ -189,7 +501,166 @@ public class DeterministicSpectra {
             out.append(noResultText);
             out.append("\" ");
             out.append(cmdSuffix);
-            out.append("\n");
+            out.append("\n\nTo calculate many scenarios, one per line, add the following to the command line:\n\n");
+            out.append(PGACALC_CMD_PREFIX);
+            out.append(BatchMode.BATCH_OPTION);
+            out.append(" [file]\n\nWhere each line of the file (or standard input if none) has the same comma separated values\n"
+                    + "as the arguments above or is a JSON object with the keys ");
+            out.append(String.join(", ", BatchMode.FIELD_NAMES));
+            out.append(".\nOne value is written per line to standard output or to the file specified with the ");
+            out.append(PGACALC_OUTPUT_PATH_KEY);
+            out.append(" property.\n\nTo run a resident calculation server add the following to the command line:\n\n");
+            out.append(PGACALC_CMD_PREFIX);
+            out.append(PgaServer.SERVER_OPTION);
+            out.append("\n\nThe server listens on the ");
+            out.append(PgaServer.PGACALC_SERVER_HOST_KEY);
+            out.append(" and ");
+            out.append(PgaServer.PGACALC_SERVER_PORT_KEY);
+            out.append(" properties and answers ");
+            out.append(PgaServer.PGA_PATH);
+            out.append(" requests with the JSON keys above as query parameters,\n");
+            out.append(PgaServer.HEALTH_PATH);
+            out.append(" requests with the server status and ");
+            out.append(PgaServer.METRICS_PATH);
+            out.append(" requests with the metrics.\nTo register the metrics MBean in the other modes, time each ground motion model and log the\nmetrics report add -D");
+            out.append(Metrics.PGACALC_METRICS_KEY);
+            out.append("=true to the command line.\n\nTo calculate the PGA values on a grid of sites add the following to the command line:\n\n");
+            out.append(PGACALC_CMD_PREFIX);
+            out.append(GridCalc.GRID_OPTION);
+            out.append(" eqMag eqLon eqLat eqDepth minLon minLat maxLon maxLat spacing [vs30]\n\n"
+                    + "The binary raster is written to the file specified with the ");
+            out.append(PGACALC_OUTPUT_PATH_KEY);
+            out.append(" property (default is ");
+            out.append(GridCalc.OUTPUT_DEFAULT);
+            out.append(").\n\nTo calculate PGA contours by refining a coarse grid only where needed add the following to the command line:\n\n");
+            out.append(PGACALC_CMD_PREFIX);
+            out.append(ContourCalc.CONTOUR_OPTION);
+            out.append(" eqMag eqLon eqLat eqDepth minLon minLat maxLon maxLat spacing [vs30]\n\n"
+                    + "The cells are split up to -D");
+            out.append(ContourCalc.PGACALC_CONTOUR_DEPTH_KEY);
+            out.append(" times (default is ");
+            out.append(ContourCalc.PGACALC_CONTOUR_DEPTH_TEXT);
+            out.append(") and the contours of the -D");
+            out.append(ContourCalc.PGACALC_CONTOUR_LEVELS_KEY);
+            out.append("=level,... levels\n(default is ");
+            out.append(ContourCalc.PGACALC_CONTOUR_LEVELS_TEXT);
+            out.append(") are written as GeoJSON to the file specified with the ");
+            out.append(PGACALC_OUTPUT_PATH_KEY);
+            out.append(" property (default is\n");
+            out.append(ContourCalc.OUTPUT_DEFAULT);
+            out.append("). The calculated nodes are written to the -D");
+            out.append(ContourCalc.PGACALC_CONTOUR_SAMPLES_KEY);
+            out.append(" file (default is ");
+            out.append(ContourCalc.PGACALC_CONTOUR_SAMPLES_TEXT);
+            out.append(").\n\nTo build the PGA lookup tables for the fast approximate mode add the following to the command line:\n\n");
+            out.append(PGACALC_CMD_PREFIX);
+            out.append(PgaTable.TABLE_BUILD_OPTION);
+            out.append(" [table]\n\nTo calculate approximate PGA values from the tables for scenarios in the batch format use:\n\n");
+            out.append(PGACALC_CMD_PREFIX);
+            out.append(PgaTable.TABLE_OPTION);
+            out.append(" table [file]\n\nThe tables cover magnitudes 2.5 to 9.5, rJB up to 1000 km, depth up to 700 km and vs30 150 to 2000 m/s.\n");
+            out.append("Scenarios outside the tables and finite rupture scenarios are calculated exactly.\n\nTo calculate the weighted median response spectrum add the following to the command line:\n\n");
+            out.append(PGACALC_CMD_PREFIX);
+            out.append(SpectrumCalc.SPECTRUM_OPTION);
+            out.append(" ");
+            out.append(cmdSuffix);
+            out.append("\n\nor for scenarios in the batch format:\n\n");
+            out.append(PGACALC_CMD_PREFIX);
+            out.append(SpectrumCalc.SPECTRUM_OPTION);
+            out.append(" [file]\n\nOne record with a comma separated IMT=value for each supported IMT is written per scenario.\n");
+            out.append("\nTo calculate the weighted probability of exceeding each PGA level add the following to the command line:\n\n");
+            out.append(PGACALC_CMD_PREFIX);
+            out.append(ExceedanceCalc.EXCEEDANCE_OPTION);
+            out.append(" ");
+            out.append(cmdSuffix);
+            out.append("\n\nor for scenarios in the batch format:\n\n");
+            out.append(PGACALC_CMD_PREFIX);
+            out.append(ExceedanceCalc.EXCEEDANCE_OPTION);
+            out.append(" [file]\n\nOne record with a comma separated level=probability for each level is written per scenario.\n");
+            out.append("The levels in g are specified with -D");
+            out.append(PGACALC_DEFAULT_IMLS_KEY);
+            out.append("=level,level,... (default is ");
+            out.append(PGACALC_DEFAULT_IMLS_TEXT);
+            out.append(").\n");
+            out.append("\nTo calculate percentiles of the PGA value by sampling the branches and their sigma add the following\n"
+                    + "to the command line:\n\n");
+            out.append(PGACALC_CMD_PREFIX);
+            out.append(SampleCalc.SAMPLE_OPTION);
+            out.append(" ");
+            out.append(cmdSuffix);
+            out.append("\n\nor for scenarios in the batch format:\n\n");
+            out.append(PGACALC_CMD_PREFIX);
+            out.append(SampleCalc.SAMPLE_OPTION);
+            out.append(" [file]\n\nOne record with a comma separated percentile=value is written per scenario. The number of\n"
+                    + "realizations is specified with -D");
+            out.append(SampleCalc.PGACALC_SAMPLE_COUNT_KEY);
+            out.append(" (default is ");
+            out.append(SampleCalc.PGACALC_SAMPLE_COUNT_TEXT);
+            out.append("), the percentiles with -D");
+            out.append(SampleCalc.PGACALC_SAMPLE_PERCENTILES_KEY);
+            out.append("=percentile,...\n(default is ");
+            out.append(SampleCalc.PGACALC_SAMPLE_PERCENTILES_TEXT);
+            out.append(") and the random seed with -D");
+            out.append(SampleCalc.PGACALC_SAMPLE_SEED_KEY);
+            out.append(" (default is ");
+            out.append(SampleCalc.PGACALC_SAMPLE_SEED_TEXT);
+            out.append(").\n");
+            out.append("\nTo keep the log mean and sigma of each ground motion model of a batch or grid run add -D");
+            out.append(BranchColumns.PGACALC_BRANCH_COLUMNS_KEY);
+            out.append("=columns\nto the command line. To calculate the results for other logic tree weights from the columns use:\n\n");
+            out.append(PGACALC_CMD_PREFIX);
+            out.append(BranchColumns.REWEIGHT_OPTION);
+            out.append(" columns trees.json\n\nWhere trees.json has the same format as gmm-trees.json. One value is written per scenario or\n"
+                    + "grid node (in row-major order) without calculating the ground motion models.\n");
+            out.append("\nTo convert a CSV file of sites (name, lon, lat and optional vs30) to a site catalog use:\n\n");
+            out.append(PGACALC_CMD_PREFIX);
+            out.append(SiteCatalog.CATALOG_BUILD_OPTION);
+            out.append(" csv catalog\n\nTo calculate the PGA values for all of the sites in a site catalog use:\n\n");
+            out.append(PGACALC_CMD_PREFIX);
+            out.append(SiteCatalog.SITES_OPTION);
+            out.append(" catalog eqMag eqLon eqLat eqDepth\n\nOne name,value record is written per site.\n");
+            out.append("\nTo calculate the PGA values only for the sites in a site catalog that may reach a threshold use:\n\n");
+            out.append(PGACALC_CMD_PREFIX);
+            out.append(ThresholdQuery.THRESHOLD_OPTION);
+            out.append(" catalog threshold eqMag eqLon eqLat eqDepth\n\nOne name,value record is written per site with the value ");
+            out.append(ThresholdQuery.BELOW_TEXT);
+            out.append(" for the sites beyond the distance where the threshold\ntimes the margin (-D");
+            out.append(ThresholdQuery.PGACALC_THRESHOLD_MARGIN_KEY);
+            out.append(", default is ");
+            out.append(ThresholdQuery.PGACALC_THRESHOLD_MARGIN_TEXT);
+            out.append(") may be reached.\nThe pruning assumes the value decreases with distance, use a smaller margin to prune fewer sites.\n");
+            out.append("\nTo calculate the PGA values for all of the sites in a site catalog for each new event in a directory or\n");
+            out.append("file of CSV (id,mag,lon,lat,depth) or GeoJSON events use:\n\n");
+            out.append(PGACALC_CMD_PREFIX);
+            out.append(EventWatcher.WATCH_OPTION);
+            out.append(" catalog events outputDir\n\nOne id.csv file is written per event and the completed events are recorded in ");
+            out.append(EventWatcher.CHECKPOINT_NAME);
+            out.append(".\nThe events are checked every ");
+            out.append(EventWatcher.PGACALC_WATCH_INTERVAL_TEXT);
+            out.append(" ms, add -D");
+            out.append(EventWatcher.PGACALC_WATCH_INTERVAL_KEY);
+            out.append("=0 to the command line to calculate the current events and exit.\n");
+            out.append("\nTo convert an ESRI ASCII grid of vs30 values to a vs30 raster use:\n\n");
+            out.append(PGACALC_CMD_PREFIX);
+            out.append(Vs30Raster.VS30_BUILD_OPTION);
+            out.append(" grid raster\n\nTo use the raster for sites without a vs30 value add -D");
+            out.append(Vs30Raster.PGACALC_VS30_RASTER_KEY);
+            out.append("=raster to the command line.\n");
+            out.append("\nTo calculate the distances to a magnitude-scaled finite rupture instead of to the hypocenter add\n-D");
+            out.append(RuptureGeometry.PGACALC_FINITE_FAULT_KEY);
+            out.append("=true and optionally -D");
+            out.append(RuptureGeometry.PGACALC_RUPTURE_STRIKE_KEY);
+            out.append("=degrees and -D");
+            out.append(RuptureGeometry.PGACALC_RUPTURE_DIP_KEY);
+            out.append("=degrees (default is ");
+            out.append(Double.toString(RuptureGeometry.DIP_DEFAULT));
+            out.append(") to the command line.\nThe strike and dip apply to every earthquake, the rupture dip, width and depth to the top\n");
+            out.append("are also passed to the ground motion models.\n");
+            out.append("\nTo cache the calculated values for repeated scenarios add -D");
+            out.append(ResultCache.PGACALC_RESULT_CACHE_SIZE_KEY);
+            out.append("=size and optionally\n-D");
+            out.append(ResultCache.PGACALC_RESULT_CACHE_QUANTUM_KEY);
+            out.append("=mag,distance,vs30 to round the scenario parameters (default is exact) to the command line.\n");
         } catch (Exception ex) {
         }
     }
@@ -0,0 +1,93 @@
+package com.isti.gmpegmm;
+
+import java.util.stream.IntStream;
+
+/**
+ * Calculates the rJB, rX and rRup distances from a {@link RuptureGeometry} to
+ * arrays of sites.
+ * <p>
+ * The sites are primitive latitude and longitude arrays and the results are
+ * written to primitive arrays so no objects are created per site. The
+ * horizontal positions use the same flat-earth approximation as
+ * {@code Locations.horzDistanceFast}. Large site sets are split into chunks
+ * that are calculated in parallel on the common fork/join pool.
+ */
+public class DistanceKernel {
+    /** Number of sites in each parallel chunk */
+    public static final int CHUNK_SIZE = 4096;
+    /** Mean earth radius in km */
+    public static final double EARTH_RADIUS_MEAN = 6371.0072;
+
+    /**
+     * Calculate the distances for the sites.
+     *
+     * @param rupture the rupture.
+     * @param lats    the site latitudes.
+     * @param lons    the site longitudes.
+     * @param rJB     the Joyner-Boore distances.
+     * @param rX      the distances from the extended top edge of the rupture,
+     *                positive on the hanging wall.
+     * @param rRup    the rupture distances.
+     */
+    public static void calc(RuptureGeometry rupture, double[] lats, double[] lons, double[] rJB, double[] rX,
+            double[] rRup) {
+        int size = lats.length;
+        if (lons.length != size || rJB.length < size || rX.length < size || rRup.length < size) {
+            throw new IllegalArgumentException("invalid array length");
+        }
+        if (size <= CHUNK_SIZE) {
+            calc(rupture, lats, lons, 0, size, rJB, rX, rRup);
+            return;
+        }
+        IntStream.range(0, (size + CHUNK_SIZE - 1) / CHUNK_SIZE).parallel().forEach(chunk -> {
+            int from = chunk * CHUNK_SIZE;
+            calc(rupture, lats, lons, from, Math.min(size, from + CHUNK_SIZE), rJB, rX, rRup);
+        });
+    }
+
+    /**
+     * Calculate the distances for the site.
+     *
+     * @param rupture the rupture.
+     * @param lat     the site latitude.
+     * @param lon     the site longitude.
+     * @param out     the distances: rJB, rX and rRup.
+     */
+    public static void calc(RuptureGeometry rupture, double lat, double lon, double[] out) {
+        double latRad = Math.toRadians(lat);
+        double lat0 = Math.toRadians(rupture.getLat());
+        double east = (Math.toRadians(lon) - Math.toRadians(rupture.getLon())) * Math.cos((latRad + lat0) * 0.5)
+                * EARTH_RADIUS_MEAN;
+        double north = (latRad - lat0) * EARTH_RADIUS_MEAN;
+        rupture.calcDistances(east, north, out, 0);
+    }
+
+    /**
+     * Calculate the distances for the range of sites.
+     *
+     * @param rupture the rupture.
+     * @param lats    the site latitudes.
+     * @param lons    the site longitudes.
+     * @param from    the first site.
+     * @param to      the site after the last site.
+     * @param rJB     the Joyner-Boore distances.
+     * @param rX      the distances from the extended top edge of the rupture,
+     *                positive on the hanging wall.
+     * @param rRup    the rupture distances.
+     */
+    public static void calc(RuptureGeometry rupture, double[] lats, double[] lons, int from, int to, double[] rJB,
+            double[] rX, double[] rRup) {
+        final double lat0 = Math.toRadians(rupture.getLat());
+        final double lon0 = Math.toRadians(rupture.getLon());
+        final double[] out = new double[3];
+        for (int i = from; i < to; i++) {
+            double lat = Math.toRadians(lats[i]);
+            double east = (Math.toRadians(lons[i]) - lon0) * Math.cos((lat + lat0) * 0.5) * EARTH_RADIUS_MEAN;
+            double north = (lat - lat0) * EARTH_RADIUS_MEAN;
+            rupture.calcDistances(east, north, out, 0);
+            rJB[i] = out[0];
+            rX[i] = out[1];
+            rRup[i] = out[2];
+        }
+    }
+}
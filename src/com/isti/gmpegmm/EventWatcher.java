@@ -0,0 +1,336 @@
+package com.isti.gmpegmm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Watches a directory or file of earthquake events and calculates the PGA
+ * values for all of the sites in a {@link SiteCatalog} for each new event.
+ * <p>
+ * The events are read from CSV files (id, mag, lon, lat, depth) or GeoJSON
+ * files (a feature or a feature collection with the id, the "mag" property and
+ * the longitude, latitude and depth coordinates). If the events are a directory
+ * the files are read in name order and a file is only read again if it has
+ * changed. One name,value record is written per site to the
+ * {@code <id>.csv} file in the output directory, see
+ * {@link #getFileName(String)}, and the event id is then appended to the
+ * {@link #CHECKPOINT_NAME} file so that the event is not calculated again
+ * after a restart. An event that fails is logged and not calculated again
+ * until a restart.
+ */
+public class EventWatcher {
+    private static final String LOG_PREFIX = UtilFns.getLogPrefix(EventWatcher.class);
+    /** Checkpoint file name in the output directory */
+    public static final String CHECKPOINT_NAME = "events.checkpoint";
+    /** PGA Calculator watch interval key */
+    public static final String PGACALC_WATCH_INTERVAL_KEY = "PGACALC_WATCH_INTERVAL";
+    /**
+     * PGA Calculator watch interval text in milliseconds, 0 to calculate the
+     * current events and exit
+     */
+    public static final String PGACALC_WATCH_INTERVAL_TEXT = System.getProperty(PGACALC_WATCH_INTERVAL_KEY,
+            "5000");
+    /** Watch command line option */
+    public static final String WATCH_OPTION = "--watch";
+
+    /**
+     * Get the file name for the event id. The characters other than letters,
+     * digits, '.' and '-' are escaped as '_' followed by the 4 digit hex
+     * character code so that different ids have different file names.
+     *
+     * @param id the event id.
+     * @return the file name.
+     */
+    static String getFileName(String id) {
+        StringBuilder sb = new StringBuilder(id.length() + 4);
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '.'
+                    || c == '-') {
+                sb.append(c);
+            } else {
+                sb.append(String.format("_%04x", (int) c));
+            }
+        }
+        return sb.append(".csv").toString();
+    }
+
+    private static boolean isEventFile(Path path) {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        return !name.startsWith(".") && (name.endsWith(".csv") || isGeoJson(name));
+    }
+
+    private static boolean isGeoJson(String name) {
+        return name.endsWith(".json") || name.endsWith(".geojson");
+    }
+
+    /**
+     * Run the watch mode: {@link #WATCH_OPTION} catalog events outputDir.
+     *
+     * @param args the program arguments.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static void run(String[] args) throws IOException {
+        if (args.length != 4) {
+            throw new IllegalArgumentException("Invalid number of arguments: " + args.length);
+        }
+        long interval = (long) UtilFns.parseDouble(PGACALC_WATCH_INTERVAL_TEXT);
+        EventWatcher watcher = new EventWatcher(SiteCatalog.open(args[1]), Paths.get(args[2]),
+                Paths.get(args[3]));
+        while (true) {
+            watcher.poll();
+            if (interval <= 0) {
+                break;
+            }
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    private final SiteCatalog catalog;
+    private final Path checkpoint;
+    private final Set<String> completed = new HashSet<>();
+    private final Path events;
+    private final Set<String> failed = new HashSet<>();
+    private final Logger log = Logger.getLogger(DeterministicSpectra.class.toString());
+    private final Map<Path, Long> modified = new HashMap<>();
+    private final Path outputDir;
+    private final Set<String> rejected = new HashSet<>();
+
+    /**
+     * Create the watcher.
+     *
+     * @param catalog   the site catalog.
+     * @param events    the events directory or file.
+     * @param outputDir the output directory.
+     * @throws IOException if an I/O error occurs.
+     */
+    public EventWatcher(SiteCatalog catalog, Path events, Path outputDir) throws IOException {
+        this.catalog = catalog;
+        this.events = events;
+        this.outputDir = outputDir;
+        Files.createDirectories(outputDir);
+        checkpoint = outputDir.resolve(CHECKPOINT_NAME);
+        if (Files.exists(checkpoint)) {
+            for (String id : Files.readAllLines(checkpoint, UtilFns.CHARSET)) {
+                if (!id.isEmpty()) {
+                    completed.add(id);
+                }
+            }
+        }
+        log.info(LOG_PREFIX + "watching " + events + " for " + catalog.size() + " sites, " + completed.size()
+                + " events completed");
+    }
+
+    /**
+     * Calculate the PGA values for the event and write them to the output
+     * directory.
+     *
+     * @param event the event.
+     * @throws IOException if an I/O error occurs.
+     */
+    private void calc(Event event) throws IOException {
+        long start = System.nanoTime();
+        float[] values = catalog.calcPga(event.mag, event.lon, event.lat, event.depth);
+        Path path = outputDir.resolve(getFileName(event.id));
+        Path tmp = outputDir.resolve(path.getFileName() + ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(tmp, UtilFns.CHARSET)) {
+                catalog.write(writer, values);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(tmp);
+            throw ex;
+        }
+        try (Writer writer = Files.newBufferedWriter(checkpoint, UtilFns.CHARSET, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND)) {
+            writer.append(event.id).append('\n');
+        }
+        completed.add(event.id);
+        log.info(String.format("%sevent %s (mag=%f, lon=%f, lat=%f, depth=%f) written to %s in %d ms", LOG_PREFIX,
+                event.id, event.mag, event.lon, event.lat, event.depth, path,
+                (System.nanoTime() - start) / 1000000));
+    }
+
+    /**
+     * Get the event files that have changed since they were last read.
+     *
+     * @return the event files.
+     * @throws IOException if an I/O error occurs.
+     */
+    private List<Path> getChangedFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        if (Files.isDirectory(events)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(events,
+                    path -> Files.isRegularFile(path) && isEventFile(path) && isChanged(path))) {
+                stream.forEach(files::add);
+            }
+            files.sort(null);
+        } else if (Files.exists(events) && isChanged(events)) {
+            files.add(events);
+        }
+        return files;
+    }
+
+    private boolean isChanged(Path path) throws IOException {
+        Long time = modified.get(path);
+        return time == null || time != Files.getLastModifiedTime(path).toMillis();
+    }
+
+    /**
+     * Calculate the events that have not been calculated.
+     *
+     * @return the number of events calculated.
+     * @throws IOException if an I/O error occurs.
+     */
+    public int poll() throws IOException {
+        int count = 0;
+        for (Path path : getChangedFiles()) {
+            List<Event> list = new ArrayList<>();
+            try {
+                long time = Files.getLastModifiedTime(path).toMillis();
+                read(path, list);
+                modified.put(path, time);
+            } catch (NoSuchFileException ex) {
+                continue;
+            } catch (RuntimeException ex) {
+                // the file may still be being written, read it again next time
+                log.warning(LOG_PREFIX + "could not read " + path + ": " + ex);
+                continue;
+            }
+            for (Event event : list) {
+                if (completed.contains(event.id) || failed.contains(event.id)) {
+                    continue;
+                }
+                try {
+                    calc(event);
+                    count++;
+                } catch (IOException | RuntimeException ex) {
+                    // do not retry the event, keep calculating the others
+                    failed.add(event.id);
+                    log.warning(LOG_PREFIX + "could not calculate event " + event.id + ": " + ex);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Read the events from the file.
+     *
+     * @param path   the file.
+     * @param events the events.
+     * @throws IOException if an I/O error occurs.
+     */
+    private void read(Path path, List<Event> events) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(path, UtilFns.CHARSET)) {
+            if (isGeoJson(path.getFileName().toString().toLowerCase(Locale.ROOT))) {
+                JsonObject o = JsonParser.parseReader(reader).getAsJsonObject();
+                JsonArray features = o.getAsJsonArray("features");
+                if (features == null) {
+                    readFeature(o, events);
+                } else {
+                    for (JsonElement feature : features) {
+                        readFeature(feature.getAsJsonObject(), events);
+                    }
+                }
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = BatchMode.parseCsv(line);
+                if (fields.length > 1 && "mag".equalsIgnoreCase(fields[1].trim())) {
+                    continue; // header
+                }
+                if (fields.length < 5) {
+                    reject(line, "too few fields");
+                    continue;
+                }
+                try {
+                    events.add(new Event(fields[0], UtilFns.checkMagnitude(fields[1]),
+                            UtilFns.checkLongitude(fields[2]), UtilFns.checkLatitude(fields[3]),
+                            UtilFns.checkDepth(fields[4])));
+                } catch (IllegalArgumentException ex) {
+                    reject(line, ex.getMessage());
+                }
+            }
+        }
+    }
+
+    private void readFeature(JsonObject feature, List<Event> events) {
+        String id = feature.has("id") ? feature.get("id").getAsString() : null;
+        try {
+            JsonArray coordinates = feature.getAsJsonObject("geometry").getAsJsonArray("coordinates");
+            events.add(new Event(id, UtilFns.checkMagnitude(feature.getAsJsonObject("properties").get("mag")
+                    .getAsDouble()), UtilFns.checkLongitude(coordinates.get(0).getAsDouble()),
+                    UtilFns.checkLatitude(coordinates.get(1).getAsDouble()),
+                    UtilFns.checkDepth(coordinates.get(2).getAsDouble())));
+        } catch (RuntimeException ex) {
+            reject(feature.toString(), ex.toString());
+        }
+    }
+
+    /**
+     * Log an invalid event once.
+     *
+     * @param text    the event text.
+     * @param message the message.
+     */
+    private void reject(String text, String message) {
+        if (rejected.add(text)) {
+            log.warning(LOG_PREFIX + "invalid event (" + message + "): " + text);
+        }
+    }
+
+    /**
+     * Earthquake event.
+     */
+    private static class Event {
+        private final double depth;
+        private final String id;
+        private final double lat;
+        private final double lon;
+        private final double mag;
+
+        private Event(String id, double mag, double lon, double lat, double depth) {
+            if (id == null || id.isEmpty()) {
+                throw new IllegalArgumentException("missing id");
+            }
+            this.id = id;
+            this.mag = mag;
+            this.lon = lon;
+            this.lat = lat;
+            this.depth = depth;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.isti.gmpegmm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import gov.usgs.earthquake.nshmp.gmm.Gmm;
+import gov.usgs.earthquake.nshmp.gmm.GmmInput;
+import gov.usgs.earthquake.nshmp.gmm.GroundMotion;
+import gov.usgs.earthquake.nshmp.gmm.Imt;
+import gov.usgs.earthquake.nshmp.tree.Branch;
+import gov.usgs.earthquake.nshmp.tree.LogicTree;
+
+/**
+ * Calculates the weighted probability of exceeding each PGA intensity measure
+ * level (IML) of the {@link DeterministicSpectra#PGACALC_DEFAULT_IMLS_KEY}
+ * property.
+ * <p>
+ * Each branch of the region logic tree, and each branch of the ground motion
+ * logic tree of the model, contributes its weight times the probability that
+ * a normal distribution with the branch log mean and sigma exceeds the log of
+ * the level. The log levels are calculated once, so the cost per scenario is
+ * the ground motion model calculations plus a primitive loop over the levels.
+ */
+public class ExceedanceCalc {
+    private static final String LOG_PREFIX = UtilFns.getLogPrefix(ExceedanceCalc.class);
+    /** Exceedance mode command line option */
+    public static final String EXCEEDANCE_OPTION = "--exceedance";
+    private static final double SQRT_2 = Math.sqrt(2.0);
+
+    /**
+     * Parse the intensity measure levels.
+     *
+     * @param text the comma separated levels.
+     * @return the levels.
+     * @throws IllegalArgumentException if a level is not positive.
+     */
+    public static double[] parseImls(String text) {
+        String[] fields = text.split(",");
+        double[] imls = new double[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            imls[i] = UtilFns.parseDouble(fields[i].trim());
+            if (!(imls[i] > 0.0)) {
+                throw new IllegalArgumentException("invalid intensity measure level (" + fields[i] + ")");
+            }
+        }
+        return imls;
+    }
+
+    /**
+     * Run the exceedance mode: {@link #EXCEEDANCE_OPTION} followed by the
+     * scenario arguments, or by an optional file of scenarios in the
+     * {@link BatchMode} format.
+     *
+     * @param args the program arguments.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static void run(String[] args) throws IOException {
+        final Logger log = Logger.getLogger(DeterministicSpectra.class.toString());
+        final ExceedanceCalc calc = new ExceedanceCalc(parseImls(DeterministicSpectra.PGACALC_DEFAULT_IMLS_TEXT));
+        if (args.length > Scenario.MIN_ARGS) {
+            String[] scenarioArgs = new String[args.length - 1];
+            System.arraycopy(args, 1, scenarioArgs, 0, scenarioArgs.length);
+            String record = calc.calcRecord(log, Scenario.parse(scenarioArgs));
+            log.info(LOG_PREFIX + record);
+            System.out.println(record);
+            return;
+        }
+        try (InputStream is = BatchMode.openInput(args.length > 1 ? args[1] : BatchMode.STDIN_NAME);
+                OutputStream os = BatchMode.openOutput()) {
+            BatchMode.runText(is, os, scenario -> calc.calcRecord(log, scenario));
+        }
+    }
+
+    private final double[] imls;
+    private final double[] lnImls;
+
+    /**
+     * Create the calculator.
+     *
+     * @param imls the intensity measure levels in g.
+     */
+    public ExceedanceCalc(double[] imls) {
+        this.imls = imls.clone();
+        lnImls = new double[imls.length];
+        for (int i = 0; i < imls.length; i++) {
+            lnImls[i] = Math.log(imls[i]);
+        }
+    }
+
+    /**
+     * Calculate the probabilities of exceedance.
+     *
+     * @param gmmTree the logic tree.
+     * @param input   the input.
+     * @param out     the probabilities of exceedance in level order.
+     */
+    public void calc(LogicTree<Gmm> gmmTree, GmmInput input, double[] out) {
+        final int n = lnImls.length;
+        for (int k = 0; k < n; k++) {
+            out[k] = 0.0;
+        }
+        for (int i = 0; i < gmmTree.size(); i++) {
+            Branch<Gmm> branch = gmmTree.get(i);
+            LogicTree<GroundMotion> gmTree = GmmCache.getInstance(branch.value(), Imt.PGA).calc(input);
+            for (int j = 0; j < gmTree.size(); j++) {
+                Branch<GroundMotion> gmBranch = gmTree.get(j);
+                double weight = branch.weight() * gmBranch.weight();
+                double mean = gmBranch.value().mean();
+                double sigma = gmBranch.value().sigma();
+                if (sigma > 0.0) {
+                    double scale = 1.0 / (sigma * SQRT_2);
+                    for (int k = 0; k < n; k++) {
+                        out[k] += weight * 0.5 * UtilFns.erfc((lnImls[k] - mean) * scale);
+                    }
+                } else {
+                    for (int k = 0; k < n; k++) {
+                        if (mean > lnImls[k]) {
+                            out[k] += weight;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculate the exceedance record for the scenario.
+     *
+     * @param log      the logger.
+     * @param scenario the scenario.
+     * @return the record with a comma separated IML=probability for each level.
+     */
+    String calcRecord(Logger log, Scenario scenario) {
+        LogicTree<Gmm> gmmTree = GmmUtil.getGmmTree(scenario.getRegion());
+        double[] distances = new double[3];
+        RuptureGeometry rupture = scenario.calcDistances(distances);
+        if (log.isLoggable(Level.INFO)) {
+            log.info(scenario.toLogString(distances));
+        }
+        double[] values = new double[imls.length];
+        calc(gmmTree, DeterministicSpectra.createInput(scenario.getMag(), distances[0], distances[1], distances[2],
+                scenario.getVs30(), rupture), values);
+        StringBuilder sb = new StringBuilder(imls.length * 24);
+        for (int i = 0; i < imls.length; i++) {
+            if (i != 0) {
+                sb.append(',');
+            }
+            sb.append(imls[i]).append('=').append(String.format("%e", values[i]));
+        }
+        return sb.toString();
+    }
+
+    /** @return the intensity measure levels */
+    public double[] getImls() {
+        return imls.clone();
+    }
+}
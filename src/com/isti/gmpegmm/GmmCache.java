@@ -0,0 +1,103 @@
+package com.isti.gmpegmm;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import gov.usgs.earthquake.nshmp.gmm.Gmm;
+import gov.usgs.earthquake.nshmp.gmm.GroundMotionModel;
+import gov.usgs.earthquake.nshmp.gmm.Imt;
+import gov.usgs.earthquake.nshmp.tree.Branch;
+import gov.usgs.earthquake.nshmp.tree.LogicTree;
+
+/**
+ * Thread-safe cache of the ground motion model instances for each
+ * {@link Gmm} and {@link Imt}.
+ */
+public class GmmCache {
+    /** GMM warm-up key */
+    public static final String PGACALC_GMM_WARMUP_KEY = "PGACALC_GMM_WARMUP";
+    /** GMM warm-up, true to build the instances for all IMTs at startup */
+    public static final boolean PGACALC_GMM_WARMUP = Boolean.getBoolean(PGACALC_GMM_WARMUP_KEY);
+    private static final LongAdder BUILD_COUNT = new LongAdder();
+    private static final Map<Imt, ConcurrentMap<Gmm, GroundMotionModel>> CACHE;
+    private static final LongAdder HIT_COUNT = new LongAdder();
+    static {
+        // the IMT map is never modified after this so it is safe to share
+        CACHE = new EnumMap<>(Imt.class);
+        for (Imt imt : Imt.values()) {
+            CACHE.put(imt, new ConcurrentHashMap<>());
+        }
+    }
+
+    /** @return the number of instances built */
+    public static long getBuildCount() {
+        return BUILD_COUNT.sum();
+    }
+
+    /** @return the number of cache hits */
+    public static long getHitCount() {
+        return HIT_COUNT.sum();
+    }
+
+    /**
+     * Get the instance.
+     *
+     * @param gmm the ground motion model.
+     * @param imt the intensity measure type.
+     * @return the instance.
+     */
+    public static GroundMotionModel getInstance(Gmm gmm, Imt imt) {
+        ConcurrentMap<Gmm, GroundMotionModel> map = CACHE.get(imt);
+        GroundMotionModel instance = map.get(gmm);
+        if (instance != null) {
+            HIT_COUNT.increment();
+            return instance;
+        }
+        return map.computeIfAbsent(gmm, g -> {
+            BUILD_COUNT.increment();
+            return g.instance(imt);
+        });
+    }
+
+    /**
+     * Build the instances for the ground motion models in the logic tree.
+     *
+     * @param gmmTree the logic tree.
+     * @param imt     the intensity measure type.
+     */
+    public static void load(LogicTree<Gmm> gmmTree, Imt imt) {
+        ConcurrentMap<Gmm, GroundMotionModel> map = CACHE.get(imt);
+        for (Branch<Gmm> branch : gmmTree) {
+            map.computeIfAbsent(branch.value(), g -> {
+                BUILD_COUNT.increment();
+                return g.instance(imt);
+            });
+        }
+    }
+
+    /** @return the cache statistics text */
+    public static String toStatsString() {
+        return "gmm cache hits=" + getHitCount() + ", builds=" + getBuildCount();
+    }
+
+    /**
+     * Build the instances for all of the supported IMTs of the ground motion
+     * models in the logic trees of all regions.
+     */
+    public static void warmUp() {
+        for (Region region : Region.values()) {
+            LogicTree<Gmm> gmmTree = GmmUtil.getGmmTree(region);
+            if (gmmTree == null) {
+                continue;
+            }
+            for (Branch<Gmm> branch : gmmTree) {
+                for (Imt imt : branch.value().supportedImts()) {
+                    getInstance(branch.value(), imt);
+                }
+            }
+        }
+    }
+}
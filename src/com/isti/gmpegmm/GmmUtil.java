@@ -1,43 +1,304 @@
 package com.isti.gmpegmm;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.util.Arrays;
 import java.util.EnumMap;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
 
 import gov.usgs.earthquake.nshmp.gmm.Gmm;
+import gov.usgs.earthquake.nshmp.gmm.Imt;
 import gov.usgs.earthquake.nshmp.model.GmmTree;
+import gov.usgs.earthquake.nshmp.tree.Branch;
 import gov.usgs.earthquake.nshmp.tree.LogicTree;
 
+/**
+ * Logic trees for the regions.
+ * <p>
+ * The logic tree for a region is loaded when it is first requested. It is read
+ * from the binary snapshot ({@link #GMM_TREES_SNAPSHOT}) if present, which does
+ * not need Gson, otherwise only that region is parsed from the JSON resource.
+ * The snapshot header has the CRC-32 checksum of the JSON resource it was
+ * written from and the JSON resource is parsed instead if it has changed since.
+ */
 public class GmmUtil {
-    private static final Map<Region, LogicTree<Gmm>> GMM_TREE_MAP;
+    private static final String LOG_PREFIX = UtilFns.getLogPrefix(GmmUtil.class);
     private static final String GMM_TREES = "/res/gmm-trees.json";
-    static {
-        InputStream is = GmmUtil.class.getResourceAsStream(GMM_TREES);
-        GMM_TREE_MAP = new EnumMap<>(Region.class);
-        try (Reader reader = new InputStreamReader(is)) {
-            JsonArray jArray = JsonParser.parseReader(reader).getAsJsonArray();
-            jArray.forEach(e -> {
-                JsonObject o = e.getAsJsonObject();
-                GMM_TREE_MAP.put(Region.valueOf(o.get("id").getAsString()), GmmTree.parseTree(o.get("tree")));
-            });
+    /** The binary snapshot of the logic trees */
+    public static final String GMM_TREES_SNAPSHOT = "/res/gmm-trees.bin";
+    private static final AtomicReferenceArray<Optional<LogicTree<Gmm>>> GMM_TREES_BY_REGION = new AtomicReferenceArray<>(
+            Region.values().length);
+    /** PGA Calculator tree snapshot key */
+    public static final String PGACALC_TREE_SNAPSHOT_KEY = "PGACALC_TREE_SNAPSHOT";
+    /** PGA Calculator tree snapshot, false to always parse the JSON resource */
+    public static final boolean PGACALC_TREE_SNAPSHOT = Boolean
+            .parseBoolean(System.getProperty(PGACALC_TREE_SNAPSHOT_KEY, "true"));
+    private static final int SNAPSHOT_MAGIC = 0x54474d47;
+    private static final int SNAPSHOT_VERSION = 2;
+
+    public static LogicTree<Gmm> getGmmTree(Region region) {
+        Optional<LogicTree<Gmm>> gmmTree = GMM_TREES_BY_REGION.get(region.ordinal());
+        if (gmmTree == null) {
+            gmmTree = loadGmmTree(region);
+        }
+        return gmmTree.orElse(null);
+    }
+
+    /**
+     * Calculate the CRC-32 checksum of the JSON.
+     *
+     * @param is the JSON input stream, which is closed.
+     * @return the checksum.
+     * @throws IOException if an I/O error occurs.
+     */
+    static long calcChecksum(InputStream is) throws IOException {
+        CRC32 crc = new CRC32();
+        try (InputStream in = is) {
+            byte[] buffer = new byte[UtilFns.DEFAULT_BUFFER_SIZE];
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, length);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Load the logic tree for the region if it has not already been loaded.
+     *
+     * @param region the region.
+     * @return the logic tree or empty if the region is not supported.
+     */
+    private static synchronized Optional<LogicTree<Gmm>> loadGmmTree(Region region) {
+        Optional<LogicTree<Gmm>> gmmTree = GMM_TREES_BY_REGION.get(region.ordinal());
+        if (gmmTree != null) {
+            return gmmTree;
+        }
+        InputStream is = PGACALC_TREE_SNAPSHOT ? GmmUtil.class.getResourceAsStream(GMM_TREES_SNAPSHOT) : null;
+        try {
+            if (is != null) {
+                gmmTree = readSnapshot(is, region, calcChecksum(GmmUtil.class.getResourceAsStream(GMM_TREES)));
+                if (gmmTree == null) {
+                    Logger.getLogger(DeterministicSpectra.class.toString()).warning(LOG_PREFIX + GMM_TREES_SNAPSHOT
+                            + " was not written from the current " + GMM_TREES + ", parsing the JSON instead");
+                }
+            }
+            if (gmmTree == null) {
+                gmmTree = Optional.ofNullable(readTree(GmmUtil.class.getResourceAsStream(GMM_TREES), region));
+            }
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
+        gmmTree.ifPresent(tree -> GmmCache.load(tree, Imt.PGA));
+        GMM_TREES_BY_REGION.set(region.ordinal(), gmmTree);
+        return gmmTree;
     }
 
-    public static LogicTree<Gmm> getGmmTree(Region region) {
-        return GMM_TREE_MAP.get(region);
+    /**
+     * Load the logic trees for all regions from the resource.
+     *
+     * @return the logic tree map.
+     */
+    static Map<Region, LogicTree<Gmm>> loadTrees() {
+        try {
+            return readTrees(GmmUtil.class.getResourceAsStream(GMM_TREES));
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
     }
 
-    public static void main(String[] args) {
-        GMM_TREE_MAP.entrySet().forEach(e -> {
+    /**
+     * Read the logic trees for all regions from the JSON.
+     *
+     * @param is the JSON input stream, which is closed.
+     * @return the logic tree map.
+     * @throws IOException              if an I/O error occurs.
+     * @throws IllegalArgumentException if the JSON is not an array of objects
+     *                                  with a region "id" and a "tree", or a
+     *                                  region has more than one tree.
+     */
+    static Map<Region, LogicTree<Gmm>> readTrees(InputStream is) throws IOException {
+        Map<Region, LogicTree<Gmm>> gmmTreeMap = new EnumMap<>(Region.class);
+        try (Reader reader = new InputStreamReader(is)) {
+            JsonElement root = JsonParser.parseReader(reader);
+            if (!root.isJsonArray()) {
+                throw new IllegalArgumentException("logic trees must be a JSON array");
+            }
+            JsonArray jArray = root.getAsJsonArray();
+            for (int i = 0; i < jArray.size(); i++) {
+                JsonElement e = jArray.get(i);
+                if (!e.isJsonObject()) {
+                    throw new IllegalArgumentException("logic tree entry " + i + " is not an object: " + e);
+                }
+                JsonObject o = e.getAsJsonObject();
+                JsonElement id = o.get("id");
+                if (id == null || !id.isJsonPrimitive() || !id.getAsJsonPrimitive().isString()) {
+                    throw new IllegalArgumentException("logic tree entry " + i + " has no \"id\" string: " + o);
+                }
+                Region region;
+                try {
+                    region = Region.valueOf(id.getAsString());
+                } catch (IllegalArgumentException ex) {
+                    throw new IllegalArgumentException("logic tree entry " + i + " has an unknown region id ("
+                            + id.getAsString() + "), expected one of " + Arrays.toString(Region.values()));
+                }
+                if (!o.has("tree")) {
+                    throw new IllegalArgumentException("logic tree entry " + i + " (" + region + ") has no \"tree\"");
+                }
+                if (gmmTreeMap.containsKey(region)) {
+                    throw new IllegalArgumentException("logic tree entry " + i + " repeats region id (" + region + ")");
+                }
+                try {
+                    gmmTreeMap.put(region, GmmTree.parseTree(o.get("tree")));
+                } catch (RuntimeException ex) {
+                    throw new IllegalArgumentException(
+                            "logic tree entry " + i + " (" + region + ") is not valid: " + ex.getMessage(), ex);
+                }
+            }
+        }
+        return gmmTreeMap;
+    }
+
+    /**
+     * Read the logic tree for the region from the snapshot.
+     *
+     * @param is       the snapshot input stream, which is closed.
+     * @param region   the region.
+     * @param checksum the checksum of the JSON, see
+     *                 {@link #calcChecksum(InputStream)}.
+     * @return the logic tree or empty if none for the region, null if the
+     *         snapshot was not written from the JSON.
+     * @throws IOException if an I/O error occurs or the snapshot is not valid.
+     */
+    static Optional<LogicTree<Gmm>> readSnapshot(InputStream is, Region region, long checksum)
+            throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(is))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("invalid logic tree snapshot");
+            }
+            if (in.readLong() != checksum) {
+                return null;
+            }
+            String id = region.name();
+            for (int count = in.readInt(); count > 0; count--) {
+                boolean match = id.equals(in.readUTF());
+                String name = in.readUTF();
+                int size = in.readInt();
+                if (!match) {
+                    for (int i = 0; i < size; i++) {
+                        in.readUTF();
+                        in.readUTF();
+                        in.readDouble();
+                    }
+                    continue;
+                }
+                LogicTree.Builder<Gmm> builder = LogicTree.builder(name);
+                for (int i = 0; i < size; i++) {
+                    String branchId = in.readUTF();
+                    builder.addBranch(branchId, Gmm.valueOf(in.readUTF()), in.readDouble());
+                }
+                return Optional.of(builder.build());
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Read the logic tree for the region from the JSON, skipping the other
+     * regions.
+     *
+     * @param is     the JSON input stream, which is closed.
+     * @param region the region.
+     * @return the logic tree or null if none for the region.
+     * @throws IOException if an I/O error occurs.
+     */
+    static LogicTree<Gmm> readTree(InputStream is, Region region) throws IOException {
+        String id = region.name();
+        try (JsonReader reader = new JsonReader(new InputStreamReader(is))) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                JsonObject o = new JsonObject();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if ("id".equals(name)) {
+                        o.addProperty(name, reader.nextString());
+                    } else if ("tree".equals(name) && (!o.has("id") || id.equals(o.get("id").getAsString()))) {
+                        o.add(name, JsonParser.parseReader(reader));
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                if (id.equals(o.get("id").getAsString())) {
+                    return GmmTree.parseTree(o.get("tree"));
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Write the snapshot of the logic trees.
+     *
+     * @param gmmTreeMap the logic tree map.
+     * @param checksum   the checksum of the JSON, see
+     *                   {@link #calcChecksum(InputStream)}.
+     * @param fileName   the snapshot file name.
+     * @throws IOException if an I/O error occurs.
+     */
+    static void writeSnapshot(Map<Region, LogicTree<Gmm>> gmmTreeMap, long checksum, String fileName)
+            throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(fileName)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(checksum);
+            out.writeInt(gmmTreeMap.size());
+            for (Map.Entry<Region, LogicTree<Gmm>> e : gmmTreeMap.entrySet()) {
+                LogicTree<Gmm> gmmTree = e.getValue();
+                out.writeUTF(e.getKey().name());
+                out.writeUTF(gmmTree.name());
+                out.writeInt(gmmTree.size());
+                for (Branch<Gmm> branch : gmmTree) {
+                    out.writeUTF(branch.id());
+                    out.writeUTF(branch.value().name());
+                    out.writeDouble(branch.weight());
+                }
+            }
+        }
+    }
+
+    /**
+     * Print the logic trees or write the snapshot if a file name is specified.
+     *
+     * @param args the optional snapshot file name.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static void main(String[] args) throws IOException {
+        Map<Region, LogicTree<Gmm>> gmmTreeMap = loadTrees();
+        if (args.length != 0) {
+            writeSnapshot(gmmTreeMap, calcChecksum(GmmUtil.class.getResourceAsStream(GMM_TREES)), args[0]);
+            return;
+        }
+        gmmTreeMap.entrySet().forEach(e -> {
             System.out.println(e.getKey());
             System.out.println(e.getValue());
         });
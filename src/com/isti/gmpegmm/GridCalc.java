@@ -0,0 +1,402 @@
+package com.isti.gmpegmm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Logger;
+
+import gov.usgs.earthquake.nshmp.calc.Site;
+import gov.usgs.earthquake.nshmp.geo.Location;
+import gov.usgs.earthquake.nshmp.gmm.Gmm;
+import gov.usgs.earthquake.nshmp.tree.LogicTree;
+
+/**
+ * Calculates the PGA values on a grid of sites for a single earthquake and
+ * writes them to a binary raster.
+ * <p>
+ * The raster is little-endian with a {@link #HEADER_SIZE} byte header (magic,
+ * version, number of columns, number of rows, minimum longitude, minimum
+ * latitude, spacing, magnitude, earthquake longitude, earthquake latitude,
+ * depth and vs30, NaN if from the {@link Vs30Raster}) followed by one float per
+ * node in row-major order starting at the minimum latitude and longitude. Nodes
+ * in unsupported regions are NaN.
+ */
+public class GridCalc {
+    private static final String LOG_PREFIX = UtilFns.getLogPrefix(GridCalc.class);
+    /** Grid mode command line option */
+    public static final String GRID_OPTION = "--grid";
+    /** Header size in bytes */
+    public static final int HEADER_SIZE = 4 * 4 + 8 * 8;
+    /** Magic number */
+    public static final int MAGIC = 0x41475047; // "GPGA" little-endian
+    /** Default output file name */
+    public static final String OUTPUT_DEFAULT = "pga-grid.bin";
+    /** Raster version */
+    public static final int VERSION = 1;
+
+    /**
+     * Determine if the region is supported.
+     *
+     * @param region the region.
+     * @return true if the region is supported.
+     */
+    private static boolean isSupported(Region region) {
+        switch (region) {
+        case CEUS:
+        case COUS:
+        case WUS:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Run the grid mode.
+     *
+     * @param args the program arguments: {@link #GRID_OPTION} eqMag eqLon eqLat
+     *             eqDepth minLon minLat maxLon maxLat spacing [vs30]
+     * @throws IOException if an I/O error occurs.
+     */
+    public static void run(String[] args) throws IOException {
+        if (args.length < 10) {
+            throw new IllegalArgumentException("Invalid number of arguments: " + args.length);
+        }
+        double mag = UtilFns.checkMagnitude(args[1]);
+        double eqLon = UtilFns.checkLongitude(args[2]);
+        double eqLat = UtilFns.checkLatitude(args[3]);
+        double depth = UtilFns.checkDepth(args[4]);
+        double minLon = UtilFns.checkLongitude(args[5]);
+        double minLat = UtilFns.checkLatitude(args[6]);
+        double maxLon = UtilFns.checkLongitude(args[7]);
+        double maxLat = UtilFns.checkLatitude(args[8]);
+        double spacing = UtilFns.parseDouble(args[9]);
+        double vs30 = args.length > 10 ? UtilFns.parseDouble(args[10])
+                : Vs30Raster.getInstance() != null ? Double.NaN : Site.VS_30_DEFAULT;
+        String output = DeterministicSpectra.PGACALC_OUTPUT_PATH_TEXT != null
+                ? DeterministicSpectra.PGACALC_OUTPUT_PATH_TEXT
+                : OUTPUT_DEFAULT;
+        GridCalc grid = new GridCalc(mag, eqLon, eqLat, depth, minLon, minLat, maxLon, maxLat, spacing, vs30);
+        try (BranchColumns columns = BranchColumns.create()) {
+            grid.write(Paths.get(output), columns);
+        }
+    }
+
+    private final double depth;
+    private final double eqLat;
+    private final double eqLon;
+    private final Location eqLocation;
+    private final Logger log;
+    private final double mag;
+    private final double minLat;
+    private final double minLon;
+    private final int ncols;
+    private final int nrows;
+    private final RegionIndex regionIndex;
+    private final RuptureGeometry rupture;
+    private final double spacing;
+    private final double vs30;
+
+    /**
+     * Create the grid.
+     *
+     * @param mag     the earthquake magnitude.
+     * @param eqLon   the earthquake longitude.
+     * @param eqLat   the earthquake latitude.
+     * @param depth   the earthquake depth.
+     * @param minLon  the minimum longitude.
+     * @param minLat  the minimum latitude.
+     * @param maxLon  the maximum longitude.
+     * @param maxLat  the maximum latitude.
+     * @param spacing the node spacing in decimal degrees.
+     * @param vs30    the vs30 value.
+     */
+    public GridCalc(double mag, double eqLon, double eqLat, double depth, double minLon, double minLat, double maxLon,
+            double maxLat, double spacing, double vs30) {
+        if (!(spacing > 0.0)) {
+            throw new IllegalArgumentException("invalid spacing (" + spacing + ")");
+        }
+        if (maxLon < minLon || maxLat < minLat) {
+            throw new IllegalArgumentException("invalid bounding box");
+        }
+        this.mag = mag;
+        this.eqLon = eqLon;
+        this.eqLat = eqLat;
+        this.depth = depth;
+        this.minLon = minLon;
+        this.minLat = minLat;
+        this.spacing = spacing;
+        this.vs30 = vs30;
+        ncols = (int) Math.floor((maxLon - minLon) / spacing + 1e-9) + 1;
+        nrows = (int) Math.floor((maxLat - minLat) / spacing + 1e-9) + 1;
+        eqLocation = UtilFns.createLocation(eqLat, eqLon, depth);
+        log = UtilFns.createQuietLogger();
+        regionIndex = RegionIndex.getInstance();
+        rupture = RuptureGeometry.PGACALC_FINITE_FAULT ? RuptureGeometry.create(mag, eqLon, eqLat, depth) : null;
+    }
+
+    /**
+     * Calculate the PGA value for the node.
+     *
+     * @param lat the node latitude.
+     * @param lon the node longitude.
+     * @return the PGA value or NaN if the region is not supported.
+     */
+    float calcNode(double lat, double lon) {
+        Region region = regionIndex.getRegion(lat, lon);
+        if (!isSupported(region)) {
+            return Float.NaN;
+        }
+        if (rupture != null) {
+            double[] distances = new double[3];
+            DistanceKernel.calc(rupture, lat, lon, distances);
+            return calcNode(region, distances[0], distances[1], distances[2], getVs30(lat, lon));
+        }
+        double distance = UtilFns.calcDistance(UtilFns.createLocation(lat, lon), eqLocation);
+        double rRup = UtilFns.calcDistanceToRupture(distance, depth);
+        return calcNode(region, distance, distance, rRup, getVs30(lat, lon));
+    }
+
+    /**
+     * Calculate the PGA value for the node.
+     *
+     * @param region the node region.
+     * @param rJB    the Joyner-Boore distance.
+     * @param rx     the site to rupture trace distance.
+     * @param rRup   the rupture distance.
+     * @param vs30   the vs30 value.
+     * @return the PGA value.
+     */
+    private float calcNode(Region region, double rJB, double rx, double rRup, double vs30) {
+        LogicTree<Gmm> gmmTree = GmmUtil.getGmmTree(region);
+        return (float) DeterministicSpectra.calcPga(log, gmmTree, mag, rJB, rx, rRup, vs30, rupture);
+    }
+
+    /**
+     * Calculate the PGA value for the node and add it to the branch columns.
+     *
+     * @param region the node region.
+     * @param rJB    the Joyner-Boore distance.
+     * @param rx     the site to rupture trace distance.
+     * @param rRup   the rupture distance.
+     * @param vs30   the vs30 value.
+     * @param group  the branch columns group or null if none.
+     * @return the PGA value or NaN if the region is not supported.
+     */
+    private float calcNode(Region region, double rJB, double rx, double rRup, double vs30,
+            BranchColumns.Group group) {
+        if (!isSupported(region)) {
+            if (group != null) {
+                group.addMissing();
+            }
+            return Float.NaN;
+        }
+        if (group == null) {
+            return calcNode(region, rJB, rx, rRup, vs30);
+        }
+        return (float) group.calc(log, region, GmmUtil.getGmmTree(region), mag, rJB, rx, rRup, vs30, rupture);
+    }
+
+    /**
+     * Get the vs30 value for the node.
+     *
+     * @param lat the node latitude.
+     * @param lon the node longitude.
+     * @return the grid vs30 value or if none the {@link Vs30Raster} value.
+     */
+    private double getVs30(double lat, double lon) {
+        return Double.isNaN(vs30) ? Vs30Raster.getVs30(lat, lon) : vs30;
+    }
+
+    /**
+     * Calculate the rows.
+     *
+     * @param rowStart the first row.
+     * @param rowEnd   the row after the last row.
+     * @param buffer   the buffer for the values.
+     * @param group    the branch columns group starting at the first row or null
+     *                 if none, which is flushed.
+     */
+    void calcRows(int rowStart, int rowEnd, ByteBuffer buffer, BranchColumns.Group group) {
+        if (rupture != null) {
+            calcRupture(rowStart, rowEnd, buffer, group);
+        } else {
+            calcPoint(rowStart, rowEnd, buffer, group);
+        }
+        if (group != null) {
+            group.flush();
+        }
+    }
+
+    /**
+     * Calculate the rows with the distances to the epicenter.
+     *
+     * @param rowStart the first row.
+     * @param rowEnd   the row after the last row.
+     * @param buffer   the buffer for the values.
+     * @param group    the branch columns group or null if none.
+     */
+    private void calcPoint(int rowStart, int rowEnd, ByteBuffer buffer, BranchColumns.Group group) {
+        final double[] lats = new double[ncols];
+        final double[] lons = new double[ncols];
+        final double[] rJB = new double[ncols];
+        final double[] rRup = new double[ncols];
+        for (int col = 0; col < ncols; col++) {
+            lons[col] = minLon + col * spacing;
+        }
+        for (int row = rowStart; row < rowEnd; row++) {
+            double lat = minLat + row * spacing;
+            Arrays.fill(lats, lat);
+            // the rows are already calculated in parallel
+            SiteDistances.calc(eqLat, eqLon, depth, lats, lons, 0, ncols, rJB, rRup);
+            for (int col = 0; col < ncols; col++) {
+                buffer.putFloat(calcNode(regionIndex.getRegion(lat, lons[col]), rJB[col], rJB[col], rRup[col],
+                        getVs30(lat, lons[col]), group));
+            }
+        }
+    }
+
+    /**
+     * Calculate the rows with the distances to the finite rupture.
+     *
+     * @param rowStart the first row.
+     * @param rowEnd   the row after the last row.
+     * @param buffer   the buffer for the values.
+     * @param group    the branch columns group or null if none.
+     */
+    private void calcRupture(int rowStart, int rowEnd, ByteBuffer buffer, BranchColumns.Group group) {
+        final double[] lats = new double[ncols];
+        final double[] lons = new double[ncols];
+        final double[] rJB = new double[ncols];
+        final double[] rX = new double[ncols];
+        final double[] rRup = new double[ncols];
+        for (int col = 0; col < ncols; col++) {
+            lons[col] = minLon + col * spacing;
+        }
+        for (int row = rowStart; row < rowEnd; row++) {
+            double lat = minLat + row * spacing;
+            Arrays.fill(lats, lat);
+            // the rows are already calculated in parallel
+            DistanceKernel.calc(rupture, lats, lons, 0, ncols, rJB, rX, rRup);
+            for (int col = 0; col < ncols; col++) {
+                buffer.putFloat(calcNode(regionIndex.getRegion(lat, lons[col]), rJB[col], rX[col], rRup[col],
+                        getVs30(lat, lons[col]), group));
+            }
+        }
+    }
+
+    /** @return the number of columns */
+    public int getNcols() {
+        return ncols;
+    }
+
+    /** @return the number of rows */
+    public int getNrows() {
+        return nrows;
+    }
+
+    /**
+     * Write the header.
+     *
+     * @param channel the file channel.
+     * @throws IOException if an I/O error occurs.
+     */
+    private void writeHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(ncols).putInt(nrows);
+        header.putDouble(minLon).putDouble(minLat).putDouble(spacing);
+        header.putDouble(mag).putDouble(eqLon).putDouble(eqLat).putDouble(depth).putDouble(vs30);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header, HEADER_SIZE - header.remaining());
+        }
+    }
+
+    /**
+     * Calculate the grid and write the raster.
+     *
+     * @param path the output path.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void write(Path path) throws IOException {
+        write(path, null);
+    }
+
+    /**
+     * Calculate the grid and write the raster.
+     *
+     * @param path    the output path.
+     * @param columns the branch columns to add the nodes to or null if none.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void write(Path path, BranchColumns columns) throws IOException {
+        final Logger log = Logger.getLogger(DeterministicSpectra.class.toString());
+        log.info(String.format("%sgrid %dx%d, mag=%f, lon=%f, lat=%f, depth=%f, vs30=%f, vector=%b", LOG_PREFIX, ncols,
+                nrows, mag, eqLon, eqLat, depth, vs30, SiteDistances.isVector()));
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeHeader(channel);
+            int threshold = Math.max(1, nrows / (ForkJoinPool.getCommonPoolParallelism() * 4));
+            try {
+                ForkJoinPool.commonPool().invoke(new RowTask(channel, columns, 0, nrows, threshold));
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+        }
+        log.info(String.format("%s%d nodes in %d ms", LOG_PREFIX, (long) ncols * nrows,
+                (System.nanoTime() - start) / 1000000));
+    }
+
+    /**
+     * Calculates a block of rows and writes them at their position in the file.
+     */
+    private class RowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final BranchColumns columns;
+        private final int rowEnd;
+        private final int rowStart;
+        private final int threshold;
+
+        RowTask(FileChannel channel, BranchColumns columns, int rowStart, int rowEnd, int threshold) {
+            this.channel = channel;
+            this.columns = columns;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected void compute() {
+            if (rowEnd - rowStart > threshold) {
+                int mid = (rowStart + rowEnd) >>> 1;
+                invokeAll(new RowTask(channel, columns, rowStart, mid, threshold),
+                        new RowTask(channel, columns, mid, rowEnd, threshold));
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((rowEnd - rowStart) * ncols * Float.BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            calcRows(rowStart, rowEnd, buffer,
+                    columns != null ? columns.createGroup((long) rowStart * ncols) : null);
+            buffer.flip();
+            long position = HEADER_SIZE + (long) rowStart * ncols * Float.BYTES;
+            try {
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+}
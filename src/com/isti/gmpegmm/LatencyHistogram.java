@@ -0,0 +1,141 @@
+package com.isti.gmpegmm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets in the style of
+ * HdrHistogram.
+ * <p>
+ * Values below {@link #LINEAR_LIMIT} nanoseconds are counted exactly, larger
+ * values fall in one of {@link #SUB_BUCKETS} buckets per power of two, so the
+ * reported values are within about 6% of the recorded values. Recording is a
+ * few atomic increments and never blocks.
+ */
+public class LatencyHistogram {
+    /** Values below this are counted in their own bucket */
+    public static final int LINEAR_LIMIT = 32;
+    /** Number of buckets per power of two */
+    public static final int SUB_BUCKETS = 16;
+    private static final int LINEAR_BITS = 5;
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int BUCKET_COUNT = LINEAR_LIMIT + (Long.SIZE - 1 - LINEAR_BITS) * SUB_BUCKETS;
+
+    /**
+     * Get the bucket index for the value.
+     *
+     * @param value the value.
+     * @return the bucket index.
+     */
+    static int getIndex(long value) {
+        if (value < LINEAR_LIMIT) {
+            return value < 0 ? 0 : (int) value;
+        }
+        int exp = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int mantissa = (int) (value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_LIMIT + (exp - LINEAR_BITS) * SUB_BUCKETS + mantissa;
+    }
+
+    /**
+     * Get the highest value that falls in the bucket.
+     *
+     * @param index the bucket index.
+     * @return the highest value.
+     */
+    static long getHighestValue(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int exp = (index - LINEAR_LIMIT) / SUB_BUCKETS + LINEAR_BITS;
+        long mantissa = (index - LINEAR_LIMIT) % SUB_BUCKETS;
+        return ((SUB_BUCKETS + mantissa + 1) << (exp - SUB_BUCKET_BITS)) - 1;
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong max = new AtomicLong();
+    private final LongAdder total = new LongAdder();
+
+    /** @return the number of recorded values */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /** @return the maximum recorded value */
+    public long getMax() {
+        return max.get();
+    }
+
+    /** @return the mean of the recorded values or 0 if none */
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0.0 : total.doubleValue() / count;
+    }
+
+    /**
+     * Get the value at the percentile.
+     *
+     * @param percentile the percentile (0 to 100).
+     * @return the highest value of the bucket containing the percentile or 0 if
+     *         there are no recorded values.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(count * Math.min(percentile, 100.0) / 100.0));
+        long sum = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            sum += snapshot[i];
+            if (sum >= target) {
+                return Math.min(getHighestValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Record the value.
+     *
+     * @param value the value in nanoseconds.
+     */
+    public void record(long value) {
+        counts.incrementAndGet(getIndex(value));
+        total.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+        }
+    }
+
+    /**
+     * Reset the histogram. Values recorded while resetting may be lost.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        max.set(0);
+    }
+
+    /**
+     * Get the summary text with the values in microseconds.
+     *
+     * @return the summary text.
+     */
+    public String toSummaryString() {
+        return String.format("count=%d, mean=%.1f, p50=%.1f, p90=%.1f, p99=%.1f, max=%.1f us", getCount(),
+                getMean() / 1000.0, getValueAtPercentile(50) / 1000.0, getValueAtPercentile(90) / 1000.0,
+                getValueAtPercentile(99) / 1000.0, getMax() / 1000.0);
+    }
+}
@@ -0,0 +1,214 @@
+package com.isti.gmpegmm;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.ObjectName;
+
+import gov.usgs.earthquake.nshmp.gmm.Gmm;
+
+/**
+ * Calculation metrics: per ground motion model latency histograms, request
+ * counts by region, error counts by cause and end-to-end latency.
+ * <p>
+ * Recording is lock-free. The metrics are available through the
+ * {@link MetricsMXBean} registered by {@link #registerMBean()} and as plain
+ * text from {@link #dump(Appendable)}.
+ */
+public class Metrics implements MetricsMXBean {
+    /**
+     * Error cause
+     */
+    public enum ErrorCause {
+        /** Invalid depth */
+        BAD_DEPTH,
+        /** Invalid input other than the below */
+        BAD_INPUT,
+        /** Invalid latitude or longitude */
+        BAD_LOCATION,
+        /** Invalid magnitude */
+        BAD_MAGNITUDE,
+        /** Invalid vs30 */
+        BAD_VS30,
+        /** Calculation failure */
+        CALCULATION,
+        /** Unsupported region */
+        UNSUPPORTED_REGION
+    }
+
+    /** The metrics */
+    public static final Metrics INSTANCE = new Metrics();
+    /** The MBean object name */
+    public static final String OBJECT_NAME = "com.isti.gmpegmm:type=Metrics";
+    /** PGA Calculator metrics key */
+    public static final String PGACALC_METRICS_KEY = "PGACALC_METRICS";
+    /** PGA Calculator metrics, true to register the MBean and log the report */
+    public static final boolean PGACALC_METRICS = Boolean.getBoolean(PGACALC_METRICS_KEY);
+    private static volatile boolean gmmTiming = PGACALC_METRICS;
+
+    /**
+     * Determine if the ground motion model evaluations are timed, which is the
+     * case once the MBean is registered.
+     *
+     * @return true if the ground motion model evaluations are timed.
+     */
+    public static boolean isGmmTiming() {
+        return gmmTiming;
+    }
+
+    /**
+     * Record the end-to-end latency of a request.
+     *
+     * @param region the region.
+     * @param nanos  the latency in nanoseconds.
+     */
+    public static void recordRequest(Region region, long nanos) {
+        INSTANCE.requestCounts.incrementAndGet(region.ordinal());
+        INSTANCE.endToEnd.record(nanos);
+    }
+
+    /**
+     * Record the error.
+     *
+     * @param cause the error cause.
+     */
+    public static void recordError(ErrorCause cause) {
+        INSTANCE.errorCounts.incrementAndGet(cause.ordinal());
+    }
+
+    /**
+     * Record the ground motion model evaluation latency.
+     *
+     * @param gmm   the ground motion model.
+     * @param nanos the latency in nanoseconds.
+     */
+    public static void recordGmm(Gmm gmm, long nanos) {
+        LatencyHistogram histogram = INSTANCE.gmmLatency.get(gmm);
+        if (histogram == null) {
+            histogram = INSTANCE.gmmLatency.computeIfAbsent(gmm, g -> new LatencyHistogram());
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * Register the MBean with the platform MBean server if not already
+     * registered and start timing the ground motion model evaluations.
+     */
+    public static synchronized void registerMBean() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, name);
+            }
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+        gmmTiming = true;
+    }
+
+    private final LatencyHistogram endToEnd = new LatencyHistogram();
+    private final AtomicLongArray errorCounts = new AtomicLongArray(ErrorCause.values().length);
+    private final ConcurrentMap<Gmm, LatencyHistogram> gmmLatency = new ConcurrentHashMap<>();
+    private final AtomicLongArray requestCounts = new AtomicLongArray(Region.values().length);
+
+    private Metrics() {
+    }
+
+    /**
+     * Write the plain-text report.
+     *
+     * @param out the output.
+     */
+    public void dump(Appendable out) {
+        try {
+            out.append("requests:");
+            for (Region region : Region.values()) {
+                long count = requestCounts.get(region.ordinal());
+                if (count != 0) {
+                    out.append(' ').append(region.name()).append('=').append(Long.toString(count));
+                }
+            }
+            out.append("\nerrors:");
+            for (ErrorCause cause : ErrorCause.values()) {
+                long count = errorCounts.get(cause.ordinal());
+                if (count != 0) {
+                    out.append(' ').append(cause.name()).append('=').append(Long.toString(count));
+                }
+            }
+            ResultCache cache = ResultCache.getInstance();
+            if (cache != null) {
+                out.append('\n').append(cache.toString());
+            }
+            out.append("\nend-to-end: ").append(endToEnd.toSummaryString()).append('\n');
+            for (Map.Entry<Gmm, LatencyHistogram> e : new TreeMap<>(gmmLatency).entrySet()) {
+                out.append(e.getKey().name()).append(": ").append(e.getValue().toSummaryString()).append('\n');
+            }
+        } catch (Exception ex) {
+        }
+    }
+
+    @Override
+    public double getEndToEndP50() {
+        return endToEnd.getValueAtPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getEndToEndP99() {
+        return endToEnd.getValueAtPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public Map<String, Long> getErrorCounts() {
+        Map<String, Long> map = new TreeMap<>();
+        for (ErrorCause cause : ErrorCause.values()) {
+            map.put(cause.name(), errorCounts.get(cause.ordinal()));
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, Double> getGmmMean() {
+        Map<String, Double> map = new TreeMap<>();
+        gmmLatency.forEach((gmm, histogram) -> map.put(gmm.name(), histogram.getMean() / 1000.0));
+        return map;
+    }
+
+    @Override
+    public Map<String, Double> getGmmP99() {
+        Map<String, Double> map = new TreeMap<>();
+        gmmLatency.forEach((gmm, histogram) -> map.put(gmm.name(), histogram.getValueAtPercentile(99) / 1000.0));
+        return map;
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+        dump(sb);
+        return sb.toString();
+    }
+
+    @Override
+    public Map<String, Long> getRequestCounts() {
+        Map<String, Long> map = new TreeMap<>();
+        for (Region region : Region.values()) {
+            map.put(region.name(), requestCounts.get(region.ordinal()));
+        }
+        return map;
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < requestCounts.length(); i++) {
+            requestCounts.set(i, 0);
+        }
+        for (int i = 0; i < errorCounts.length(); i++) {
+            errorCounts.set(i, 0);
+        }
+        endToEnd.reset();
+        gmmLatency.values().forEach(LatencyHistogram::reset);
+    }
+}
@@ -0,0 +1,35 @@
+package com.isti.gmpegmm;
+
+import java.util.Map;
+
+/**
+ * Management interface for the calculation {@link Metrics}. Latencies are in
+ * microseconds.
+ */
+public interface MetricsMXBean {
+    /** @return the end-to-end 50th percentile latency */
+    double getEndToEndP50();
+
+    /** @return the end-to-end 99th percentile latency */
+    double getEndToEndP99();
+
+    /** @return the error counts by cause */
+    Map<String, Long> getErrorCounts();
+
+    /** @return the mean latency for each ground motion model */
+    Map<String, Double> getGmmMean();
+
+    /** @return the 99th percentile latency for each ground motion model */
+    Map<String, Double> getGmmP99();
+
+    /** @return the plain-text report */
+    String getReport();
+
+    /** @return the request counts by region */
+    Map<String, Long> getRequestCounts();
+
+    /**
+     * Reset the metrics.
+     */
+    void reset();
+}
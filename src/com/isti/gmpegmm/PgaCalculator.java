@@ -0,0 +1,383 @@
+package com.isti.gmpegmm;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import gov.usgs.earthquake.nshmp.gmm.Gmm;
+import gov.usgs.earthquake.nshmp.tree.LogicTree;
+
+/**
+ * Thread-safe PGA calculator for embedding in other applications.
+ * <p>
+ * The calculations take primitive arrays and write the PGA values to a caller
+ * supplied array, so no text is formatted or parsed. The values are the same
+ * as {@link DeterministicSpectra} for the same scenario: the region logic tree
+ * is selected from the site location, a NaN vs30 value is replaced by the
+ * {@link Vs30Raster} or default value and the distances are to the
+ * magnitude-scaled rupture if the {@link RuptureGeometry#PGACALC_FINITE_FAULT_KEY}
+ * property is specified. A site outside the supported regions has a NaN value.
+ * <p>
+ * The asynchronous calculations run on a fixed number of threads with a
+ * bounded queue. When the queue is full the submitting thread waits for space
+ * so a fast producer is slowed to the rate of the calculations.
+ * <p>
+ * The synchronous calculations use per-thread scratch arrays and primitive
+ * validation and distances, so in steady state the only allocations are made
+ * by nshmp-lib (the ground motion model input and results) and, if the finite
+ * fault property is specified, one rupture per earthquake.
+ */
+public class PgaCalculator implements AutoCloseable {
+    private static final double DEPTH_MAX = UtilFns.getDepthMax();
+    private static final double DEPTH_MIN = UtilFns.getDepthMin();
+    private static final double LAT_MAX = UtilFns.getLatitudeMax();
+    private static final double LAT_MIN = UtilFns.getLatitudeMin();
+    private static final double LON_MAX = UtilFns.getLongitudeMax();
+    private static final double LON_MIN = UtilFns.getLongitudeMin();
+    private static final double MAG_MAX = UtilFns.getMagnitudeMax();
+    private static final double MAG_MIN = UtilFns.getMagnitudeMin();
+    /** Default queue capacity */
+    public static final int QUEUE_CAPACITY_DEFAULT = 1024;
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * Check the earthquake values, the {@link UtilFns} checks are only called
+     * for values that are not inside the ranges so they do not box the values.
+     *
+     * @param mag   the magnitude.
+     * @param eqLon the longitude.
+     * @param eqLat the latitude.
+     * @param depth the depth.
+     */
+    private static void checkEarthquake(double mag, double eqLon, double eqLat, double depth) {
+        if (!(mag > MAG_MIN && mag < MAG_MAX)) {
+            UtilFns.checkMagnitude(mag);
+        }
+        if (!(depth > DEPTH_MIN && depth < DEPTH_MAX)) {
+            UtilFns.checkDepth(depth);
+        }
+        checkLocation(eqLon, eqLat);
+    }
+
+    /**
+     * Check the location values.
+     *
+     * @param lon the longitude.
+     * @param lat the latitude.
+     */
+    private static void checkLocation(double lon, double lat) {
+        if (!(lon > LON_MIN && lon < LON_MAX)) {
+            UtilFns.checkLongitude(lon);
+        }
+        if (!(lat > LAT_MIN && lat < LAT_MAX)) {
+            UtilFns.checkLatitude(lat);
+        }
+    }
+
+    /**
+     * Put the task in the queue, waiting for space if necessary.
+     *
+     * @param r        the task.
+     * @param executor the executor.
+     */
+    private static void waitForQueue(Runnable r, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("calculator closed");
+        }
+        try {
+            executor.getQueue().put(r);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(ex);
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final Logger log = UtilFns.createQuietLogger();
+    private final RegionIndex regionIndex = RegionIndex.getInstance();
+
+    /**
+     * Create the calculator with a thread for each processor and the default
+     * queue capacity.
+     */
+    public PgaCalculator() {
+        this(Runtime.getRuntime().availableProcessors(), QUEUE_CAPACITY_DEFAULT);
+    }
+
+    /**
+     * Create the calculator.
+     *
+     * @param threads       the number of threads for the asynchronous
+     *                      calculations.
+     * @param queueCapacity the maximum number of queued asynchronous
+     *                      calculations.
+     */
+    public PgaCalculator(int threads, int queueCapacity) {
+        if (threads <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("invalid threads (" + threads + ") or queue capacity ("
+                    + queueCapacity + ")");
+        }
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread thread = new Thread(r, "PgaCalculator");
+                    thread.setDaemon(true);
+                    return thread;
+                }, PgaCalculator::waitForQueue);
+    }
+
+    /**
+     * Calculate the PGA value.
+     *
+     * @param siteLon the site longitude.
+     * @param siteLat the site latitude.
+     * @param mag     the earthquake magnitude.
+     * @param eqLon   the earthquake longitude.
+     * @param eqLat   the earthquake latitude.
+     * @param depth   the earthquake depth.
+     * @param vs30    the vs30 value or NaN for the raster or default value.
+     * @return the PGA value or NaN if the region is not supported.
+     * @throws IllegalArgumentException if a value is out of range.
+     */
+    public double calc(double siteLon, double siteLat, double mag, double eqLon, double eqLat, double depth,
+            double vs30) {
+        Scratch scratch = SCRATCH.get();
+        double[] distances = scratch.distances;
+        RuptureGeometry rupture = calcDistances(scratch, siteLon, siteLat, mag, eqLon, eqLat, depth);
+        return calcSite(scratch, siteLon, siteLat, mag, distances[0], distances[1], distances[2], vs30, rupture);
+    }
+
+    /**
+     * Calculate the PGA values for the sites for an earthquake.
+     *
+     * @param mag      the earthquake magnitude.
+     * @param eqLon    the earthquake longitude.
+     * @param eqLat    the earthquake latitude.
+     * @param depth    the earthquake depth.
+     * @param siteLons the site longitudes.
+     * @param siteLats the site latitudes.
+     * @param vs30s    the vs30 values (NaN for the raster or default value) or
+     *                 null for the raster or default values.
+     * @param out      the PGA values, NaN if the region is not supported.
+     * @throws IllegalArgumentException if a value is out of range, the values
+     *                                  before it are calculated.
+     */
+    public void calc(double mag, double eqLon, double eqLat, double depth, double[] siteLons, double[] siteLats,
+            double[] vs30s, double[] out) {
+        final int size = siteLats.length;
+        if (siteLons.length != size || (vs30s != null && vs30s.length != size) || out.length < size) {
+            throw new IllegalArgumentException("invalid array length");
+        }
+        checkEarthquake(mag, eqLon, eqLat, depth);
+        final Scratch scratch = SCRATCH.get();
+        final RuptureGeometry rupture = RuptureGeometry.PGACALC_FINITE_FAULT
+                ? scratch.getRupture(mag, eqLon, eqLat, depth)
+                : null;
+        final double[] distances = scratch.distances;
+        for (int i = 0; i < size; i++) {
+            checkLocation(siteLons[i], siteLats[i]);
+            if (rupture != null) {
+                DistanceKernel.calc(rupture, siteLats[i], siteLons[i], distances);
+            } else {
+                double distance = UtilFns.calcDistance(siteLats[i], siteLons[i], eqLat, eqLon);
+                distances[0] = distance;
+                distances[1] = distance;
+                distances[2] = UtilFns.calcDistanceToRupture(distance, depth);
+            }
+            out[i] = calcSite(scratch, siteLons[i], siteLats[i], mag, distances[0], distances[1], distances[2],
+                    vs30s != null ? vs30s[i] : Double.NaN, rupture);
+        }
+    }
+
+    /**
+     * Calculate the PGA values for the scenarios, one per array index.
+     *
+     * @param siteLons the site longitudes.
+     * @param siteLats the site latitudes.
+     * @param mags     the earthquake magnitudes.
+     * @param eqLons   the earthquake longitudes.
+     * @param eqLats   the earthquake latitudes.
+     * @param depths   the earthquake depths.
+     * @param vs30s    the vs30 values (NaN for the raster or default value) or
+     *                 null for the raster or default values.
+     * @param out      the PGA values, NaN if the region is not supported.
+     * @throws IllegalArgumentException if a value is out of range, the values
+     *                                  before it are calculated.
+     */
+    public void calc(double[] siteLons, double[] siteLats, double[] mags, double[] eqLons, double[] eqLats,
+            double[] depths, double[] vs30s, double[] out) {
+        final int size = siteLats.length;
+        if (siteLons.length != size || mags.length != size || eqLons.length != size || eqLats.length != size
+                || depths.length != size || (vs30s != null && vs30s.length != size) || out.length < size) {
+            throw new IllegalArgumentException("invalid array length");
+        }
+        final Scratch scratch = SCRATCH.get();
+        final double[] distances = scratch.distances;
+        for (int i = 0; i < size; i++) {
+            RuptureGeometry rupture = calcDistances(scratch, siteLons[i], siteLats[i], mags[i], eqLons[i], eqLats[i],
+                    depths[i]);
+            out[i] = calcSite(scratch, siteLons[i], siteLats[i], mags[i], distances[0], distances[1], distances[2],
+                    vs30s != null ? vs30s[i] : Double.NaN, rupture);
+        }
+    }
+
+    /**
+     * Calculate the distances for the scenario into the scratch distances.
+     *
+     * @param scratch the scratch.
+     * @param siteLon the site longitude.
+     * @param siteLat the site latitude.
+     * @param mag     the earthquake magnitude.
+     * @param eqLon   the earthquake longitude.
+     * @param eqLat   the earthquake latitude.
+     * @param depth   the earthquake depth.
+     * @return the rupture or null if the hypocenter.
+     */
+    private RuptureGeometry calcDistances(Scratch scratch, double siteLon, double siteLat, double mag, double eqLon,
+            double eqLat, double depth) {
+        checkLocation(siteLon, siteLat);
+        checkEarthquake(mag, eqLon, eqLat, depth);
+        double[] distances = scratch.distances;
+        if (RuptureGeometry.PGACALC_FINITE_FAULT) {
+            RuptureGeometry rupture = scratch.getRupture(mag, eqLon, eqLat, depth);
+            DistanceKernel.calc(rupture, siteLat, siteLon, distances);
+            return rupture;
+        }
+        double distance = UtilFns.calcDistance(siteLat, siteLon, eqLat, eqLon);
+        distances[0] = distance;
+        distances[1] = distance;
+        distances[2] = UtilFns.calcDistanceToRupture(distance, depth);
+        return null;
+    }
+
+    /**
+     * Calculate the PGA value for the site.
+     *
+     * @param scratch the scratch.
+     * @param siteLon the site longitude.
+     * @param siteLat the site latitude.
+     * @param mag     the earthquake magnitude.
+     * @param rJB     the Joyner-Boore distance.
+     * @param rx      the site to rupture trace distance.
+     * @param rRup    the rupture distance.
+     * @param vs30    the vs30 value or NaN for the raster or default value.
+     * @param rupture the rupture or null if the hypocenter.
+     * @return the PGA value or NaN if the region is not supported.
+     */
+    private double calcSite(Scratch scratch, double siteLon, double siteLat, double mag, double rJB, double rx,
+            double rRup, double vs30, RuptureGeometry rupture) {
+        LogicTree<Gmm> gmmTree = GmmUtil.getGmmTree(regionIndex.getRegion(siteLat, siteLon));
+        if (gmmTree == null) {
+            return Double.NaN;
+        }
+        if (Double.isNaN(vs30)) {
+            vs30 = Vs30Raster.getVs30(siteLat, siteLon);
+        }
+        return DeterministicSpectra.calcPga(log, gmmTree,
+                DeterministicSpectra.createInput(mag, rJB, rx, rRup, vs30, rupture), scratch.getMeans(gmmTree.size()));
+    }
+
+    /**
+     * Stop the asynchronous calculations after the queued calculations are
+     * done.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    /** @return the number of queued asynchronous calculations */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Submit the calculation of the PGA values for the sites for an earthquake,
+     * waiting if the queue is full.
+     *
+     * @param mag      the earthquake magnitude.
+     * @param eqLon    the earthquake longitude.
+     * @param eqLat    the earthquake latitude.
+     * @param depth    the earthquake depth.
+     * @param siteLons the site longitudes.
+     * @param siteLats the site latitudes.
+     * @param vs30s    the vs30 values or null for the raster or default values.
+     * @param out      the PGA values.
+     * @return the future completed with the PGA values.
+     * @throws RejectedExecutionException if the calculator is closed or the
+     *                                    thread is interrupted while waiting.
+     */
+    public CompletableFuture<double[]> submit(double mag, double eqLon, double eqLat, double depth,
+            double[] siteLons, double[] siteLats, double[] vs30s, double[] out) {
+        return CompletableFuture.supplyAsync(() -> {
+            calc(mag, eqLon, eqLat, depth, siteLons, siteLats, vs30s, out);
+            return out;
+        }, executor);
+    }
+
+    /**
+     * Submit the calculation of the PGA values for the scenarios, waiting if the
+     * queue is full.
+     *
+     * @param siteLons the site longitudes.
+     * @param siteLats the site latitudes.
+     * @param mags     the earthquake magnitudes.
+     * @param eqLons   the earthquake longitudes.
+     * @param eqLats   the earthquake latitudes.
+     * @param depths   the earthquake depths.
+     * @param vs30s    the vs30 values or null for the raster or default values.
+     * @param out      the PGA values.
+     * @return the future completed with the PGA values.
+     * @throws RejectedExecutionException if the calculator is closed or the
+     *                                    thread is interrupted while waiting.
+     */
+    public CompletableFuture<double[]> submit(double[] siteLons, double[] siteLats, double[] mags,
+            double[] eqLons, double[] eqLats, double[] depths, double[] vs30s, double[] out) {
+        return CompletableFuture.supplyAsync(() -> {
+            calc(siteLons, siteLats, mags, eqLons, eqLats, depths, vs30s, out);
+            return out;
+        }, executor);
+    }
+
+    /**
+     * Per-thread scratch arrays.
+     */
+    private static class Scratch {
+        private final double[] distances = new double[3];
+        private double[] means = new double[16];
+        private RuptureGeometry rupture;
+
+        /**
+         * Get the branch means array.
+         *
+         * @param size the minimum size.
+         * @return the array.
+         */
+        private double[] getMeans(int size) {
+            if (means.length < size) {
+                means = new double[size];
+            }
+            return means;
+        }
+
+        /**
+         * Get the rupture, the previous rupture if it is for the same
+         * earthquake.
+         *
+         * @param mag   the magnitude.
+         * @param lon   the longitude.
+         * @param lat   the latitude.
+         * @param depth the depth.
+         * @return the rupture.
+         */
+        private RuptureGeometry getRupture(double mag, double lon, double lat, double depth) {
+            if (rupture == null || rupture.getLength() != RuptureGeometry.calcLength(mag) || rupture.getLon() != lon
+                    || rupture.getLat() != lat || rupture.getDepth() != depth) {
+                rupture = RuptureGeometry.create(mag, lon, lat, depth);
+            }
+            return rupture;
+        }
+    }
+}
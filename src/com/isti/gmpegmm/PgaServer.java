@@ -0,0 +1,225 @@
+package com.isti.gmpegmm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import gov.usgs.earthquake.nshmp.calc.Site;
+
+/**
+ * A resident PGA calculation server on the JDK built-in HTTP server.
+ * <p>
+ * The logic trees and ground motion models are loaded once at startup. The
+ * {@link #PGA_PATH} endpoint accepts the {@link BatchMode#FIELD_NAMES} query
+ * parameters or a CSV or JSON scenario line as the request body and returns the
+ * PGA value, the {@link #HEALTH_PATH} endpoint returns the server status and
+ * the {@link #METRICS_PATH} endpoint returns the {@link Metrics} report.
+ */
+public class PgaServer {
+    private static final String LOG_PREFIX = UtilFns.getLogPrefix(PgaServer.class);
+    /** Health path */
+    public static final String HEALTH_PATH = "/health";
+    /** Metrics path */
+    public static final String METRICS_PATH = "/metrics";
+    /** PGA path */
+    public static final String PGA_PATH = "/pga";
+    /** Server host key */
+    public static final String PGACALC_SERVER_HOST_KEY = "PGACALC_SERVER_HOST";
+    /** Server host text */
+    public static final String PGACALC_SERVER_HOST_TEXT = System.getProperty(PGACALC_SERVER_HOST_KEY, "127.0.0.1");
+    /** Server port key */
+    public static final String PGACALC_SERVER_PORT_KEY = "PGACALC_SERVER_PORT";
+    /** Server port text */
+    public static final String PGACALC_SERVER_PORT_TEXT = System.getProperty(PGACALC_SERVER_PORT_KEY, "8080");
+    /** Server threads key, 0 for virtual threads if available */
+    public static final String PGACALC_SERVER_THREADS_KEY = "PGACALC_SERVER_THREADS";
+    /** Server threads text or null for default */
+    public static final String PGACALC_SERVER_THREADS_TEXT = System.getProperty(PGACALC_SERVER_THREADS_KEY);
+    /** Server mode command line option */
+    public static final String SERVER_OPTION = "--server";
+
+    /**
+     * Create the executor, using virtual threads when the runtime supports them
+     * unless a thread count is specified.
+     *
+     * @param log the logger.
+     * @return the executor.
+     */
+    static ExecutorService createExecutor(Logger log) {
+        int threads = 0;
+        if (PGACALC_SERVER_THREADS_TEXT != null) {
+            threads = (int) UtilFns.parseDouble(PGACALC_SERVER_THREADS_TEXT);
+        }
+        if (threads <= 0) {
+            ExecutorService executor = UtilFns.newVirtualThreadExecutor();
+            if (executor != null) {
+                log.info(LOG_PREFIX + "using virtual threads");
+                return executor;
+            }
+            threads = Runtime.getRuntime().availableProcessors() * 2;
+        }
+        log.info(LOG_PREFIX + "using " + threads + " threads");
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Get the scenario fields from the query.
+     *
+     * @param query the raw query or null if none.
+     * @return the fields.
+     */
+    static String[] parseQuery(String query) {
+        String[] fields = new String[BatchMode.FIELD_NAMES.length];
+        if (query != null) {
+            for (String param : query.split("&")) {
+                int index = param.indexOf('=');
+                if (index <= 0) {
+                    continue;
+                }
+                String key = URLDecoder.decode(param.substring(0, index), UtilFns.CHARSET);
+                String value = URLDecoder.decode(param.substring(index + 1), UtilFns.CHARSET);
+                for (int i = 0; i < fields.length; i++) {
+                    if (BatchMode.FIELD_NAMES[i].equals(key)) {
+                        fields[i] = value;
+                        break;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < Scenario.MIN_ARGS; i++) {
+            if (fields[i] == null) {
+                throw new IllegalArgumentException("missing parameter: " + BatchMode.FIELD_NAMES[i]);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Run the server.
+     *
+     * @param args the program arguments.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static void run(String[] args) throws IOException {
+        PgaServer server = new PgaServer(
+                new InetSocketAddress(PGACALC_SERVER_HOST_TEXT, (int) UtilFns.parseDouble(PGACALC_SERVER_PORT_TEXT)));
+        server.start();
+    }
+
+    /**
+     * Warm up the logic trees and ground motion models for the supported regions.
+     * The warm-up calculations are not recorded as requests or cached.
+     *
+     * @param log the logger.
+     */
+    static void warmUp(Logger log) {
+        GmmCache.warmUp();
+        Region[] regions = { Region.CEUS, Region.WUS, Region.COUS };
+        for (Region region : regions) {
+            double lat = (region.getMinlatitude() + region.getMaxlatitude()) * 0.5;
+            double lon = region == Region.WUS ? region.getMinlongitude() + 1.0
+                    : region == Region.CEUS ? region.getMaxlongitude() - 1.0
+                            : (Region.CEUS.getMinlongitude() + Region.WUS.getMaxlongitude()) * 0.5;
+            Scenario scenario = new Scenario(region.name(), lon, lat, region, 6.0, lon, lat, 10.0,
+                    Site.VS_30_DEFAULT);
+            double[] distances = new double[3];
+            RuptureGeometry rupture = scenario.calcDistances(distances);
+            DeterministicSpectra.calcPga(log, GmmUtil.getGmmTree(region), scenario.getMag(), distances[0],
+                    distances[1], distances[2], scenario.getVs30(), rupture);
+        }
+    }
+
+    private final ExecutorService executor;
+    private final Logger log = Logger.getLogger(DeterministicSpectra.class.toString());
+    private final AtomicLong requestCount = new AtomicLong();
+    private final HttpServer server;
+    private final long startTime = System.currentTimeMillis();
+
+    /**
+     * Create the server.
+     *
+     * @param address the socket address.
+     * @throws IOException if an I/O error occurs.
+     */
+    public PgaServer(InetSocketAddress address) throws IOException {
+        server = HttpServer.create(address, 0);
+        executor = createExecutor(log);
+        server.setExecutor(executor);
+        server.createContext(PGA_PATH, this::handlePga);
+        server.createContext(HEALTH_PATH, this::handleHealth);
+        server.createContext(METRICS_PATH, exchange -> send(exchange, 200, Metrics.INSTANCE.getReport()));
+    }
+
+    private void handleHealth(HttpExchange exchange) throws IOException {
+        String text = "OK uptime=" + (System.currentTimeMillis() - startTime) + "ms requests=" + requestCount.get()
+                + ", " + GmmCache.toStatsString() + ", " + ResultCache.toStatsString() + "\n";
+        send(exchange, 200, text);
+    }
+
+    private void handlePga(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        int code = 200;
+        String text;
+        try {
+            Scenario scenario;
+            if ("POST".equals(exchange.getRequestMethod())) {
+                String line;
+                try (InputStream is = exchange.getRequestBody()) {
+                    line = UtilFns.readFully(is).trim();
+                }
+                scenario = BatchMode.parseScenario(line);
+            } else {
+                URI uri = exchange.getRequestURI();
+                scenario = Scenario.parse(parseQuery(uri.getRawQuery()));
+            }
+            text = String.format("%f", DeterministicSpectra.calcPga(log, scenario));
+        } catch (Exception ex) {
+            log.warning(LOG_PREFIX + ex.toString());
+            code = 400;
+            text = DeterministicSpectra.PGACALC_NO_RESULT_TEXT != null ? DeterministicSpectra.PGACALC_NO_RESULT_TEXT
+                    : ex.getMessage();
+        }
+        send(exchange, code, text + "\n");
+    }
+
+    private void send(HttpExchange exchange, int code, String text) throws IOException {
+        byte[] bytes = text.getBytes(UtilFns.CHARSET);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=" + UtilFns.CHARSET.name());
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    /**
+     * Start the server after warming up the models.
+     */
+    public void start() {
+        Metrics.registerMBean();
+        warmUp(log);
+        // drop the cold ground motion model timings of the warm-up
+        Metrics.INSTANCE.reset();
+        server.start();
+        log.info(LOG_PREFIX + "listening on " + server.getAddress());
+    }
+
+    /**
+     * Stop the server.
+     *
+     * @param delay the maximum time in seconds to wait for exchanges to finish.
+     */
+    public void stop(int delay) {
+        server.stop(delay);
+        executor.shutdown();
+    }
+}
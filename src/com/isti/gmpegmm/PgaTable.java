@@ -0,0 +1,390 @@
+package com.isti.gmpegmm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+import gov.usgs.earthquake.nshmp.gmm.Gmm;
+import gov.usgs.earthquake.nshmp.tree.LogicTree;
+
+/**
+ * Precomputed PGA lookup tables for a fast approximate calculation.
+ * <p>
+ * For each supported region the tree-weighted ln(PGA) is tabulated on a
+ * uniform grid of magnitude, ln(1 + rJB), ln(1 + h) and ln(vs30), where
+ * {@code h = sqrt(rRup² - rJB²)} is the depth term of the rupture distance
+ * used by {@link DeterministicSpectra}. Values are answered by multilinear
+ * interpolation in log space from a memory-mapped file. The tables cover
+ * magnitudes 2.5 to 9.5, rJB and h up to 1000 and 700 km and vs30 150 to 2000
+ * m/s; inputs outside the tables are rejected by {@link #lookup} and the table
+ * mode calculates them exactly instead. The tables are for a point source, so
+ * the table mode also calculates finite rupture scenarios exactly.
+ * <p>
+ * The file is little-endian: magic, version, the four axis sizes, the axis
+ * ranges as doubles, the number of regions, then for each region the region
+ * ordinal and the maximum relative error measured against the exact
+ * calculation, followed by the float tables in region order.
+ */
+public class PgaTable {
+    private static final String LOG_PREFIX = UtilFns.getLogPrefix(PgaTable.class);
+    /** Number of random samples used to measure the error */
+    public static final int ERROR_SAMPLES = 2000;
+    /** Magic number */
+    public static final int MAGIC = 0x54475047; // "GPGT" little-endian
+    /** Default output file name */
+    public static final String OUTPUT_DEFAULT = "pga-table.bin";
+    /** PGA table dimensions key */
+    public static final String PGACALC_TABLE_DIMS_KEY = "PGACALC_TABLE_DIMS";
+    /** PGA table dimensions text: magnitude, rJB, depth and vs30 node counts */
+    public static final String PGACALC_TABLE_DIMS_TEXT = System.getProperty(PGACALC_TABLE_DIMS_KEY, "71,51,16,16");
+    /** The supported regions */
+    public static final Region[] REGIONS = { Region.CEUS, Region.WUS, Region.COUS };
+    /** Table build command line option */
+    public static final String TABLE_BUILD_OPTION = "--table-build";
+    /** Table lookup command line option */
+    public static final String TABLE_OPTION = "--table";
+    /** Table version */
+    public static final int VERSION = 1;
+    private static final int ERRORS_POSITION = 80;
+    private static final double MAG_MAX = 9.5;
+    private static final double MAG_MIN = 2.5;
+    private static final double T_H_MAX = Math.log1p(700.0);
+    private static final double T_R_MAX = Math.log1p(1000.0);
+    private static final double T_V_MAX = Math.log(2000.0);
+    private static final double T_V_MIN = Math.log(150.0);
+
+    /**
+     * Build the tables and write them to the file.
+     *
+     * @param path the output path.
+     * @param dims the magnitude, rJB, depth and vs30 node counts.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static void build(Path path, int[] dims) throws IOException {
+        final Logger log = Logger.getLogger(DeterministicSpectra.class.toString());
+        final Logger quietLog = UtilFns.createQuietLogger();
+        final int nm = dims[0], nr = dims[1], nh = dims[2], nv = dims[3];
+        final int size = nm * nr * nh * nv;
+        final double dm = (MAG_MAX - MAG_MIN) / (nm - 1);
+        final double dr = T_R_MAX / (nr - 1);
+        final double dh = T_H_MAX / (nh - 1);
+        final double dv = (T_V_MAX - T_V_MIN) / (nv - 1);
+        Map<Region, float[]> tables = new EnumMap<>(Region.class);
+        for (Region region : REGIONS) {
+            final LogicTree<Gmm> gmmTree = GmmUtil.getGmmTree(region);
+            final float[] table = new float[size];
+            long start = System.nanoTime();
+            IntStream.range(0, nm).parallel().forEach(im -> {
+                double mag = MAG_MIN + im * dm;
+                int index = im * nr * nh * nv;
+                for (int ir = 0; ir < nr; ir++) {
+                    double rJB = Math.expm1(ir * dr);
+                    for (int ih = 0; ih < nh; ih++) {
+                        double rRup = UtilFns.calcDistanceToRupture(rJB, Math.expm1(ih * dh));
+                        for (int iv = 0; iv < nv; iv++) {
+                            double vs30 = Math.exp(T_V_MIN + iv * dv);
+                            table[index++] = (float) Math
+                                    .log(DeterministicSpectra.calcPga(quietLog, gmmTree, mag, rJB, rJB, rRup, vs30));
+                        }
+                    }
+                }
+            });
+            tables.put(region, table);
+            log.info(String.format("%s%s table %d nodes in %d ms", LOG_PREFIX, region, size,
+                    (System.nanoTime() - start) / 1000000));
+        }
+        // measure the errors on the mapped file so they reflect exactly what the
+        // lookup returns, then update them in place
+        write(path, dims, tables);
+        PgaTable pgaTable = open(path);
+        ByteBuffer buffer = ByteBuffer.allocate(Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            for (int i = 0; i < REGIONS.length; i++) {
+                float error = (float) pgaTable.measureError(REGIONS[i], quietLog, ERROR_SAMPLES);
+                log.info(String.format("%s%s maximum relative error %.6f", LOG_PREFIX, REGIONS[i], error));
+                buffer.clear();
+                buffer.putFloat(error).flip();
+                channel.write(buffer, ERRORS_POSITION + i * 8);
+            }
+        }
+    }
+
+    private static int headerSize(int regionCount) {
+        return 4 * 6 + 8 * 6 + 4 + regionCount * 8;
+    }
+
+    /**
+     * Open the table file.
+     *
+     * @param path the table file path.
+     * @return the table.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static PgaTable open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            return new PgaTable(buffer);
+        }
+    }
+
+    /**
+     * Parse the dimensions text.
+     *
+     * @param text the comma separated magnitude, rJB, depth and vs30 node counts.
+     * @return the dimensions.
+     */
+    static int[] parseDims(String text) {
+        String[] fields = text.split(",");
+        if (fields.length != 4) {
+            throw new IllegalArgumentException("invalid table dimensions (" + text + ")");
+        }
+        int[] dims = new int[4];
+        for (int i = 0; i < dims.length; i++) {
+            dims[i] = (int) UtilFns.parseDouble(fields[i].trim());
+            if (dims[i] < 2) {
+                throw new IllegalArgumentException("invalid table dimensions (" + text + ")");
+            }
+        }
+        return dims;
+    }
+
+    /**
+     * Run the table build mode: {@link #TABLE_BUILD_OPTION} [output], or the
+     * table lookup mode: {@link #TABLE_OPTION} table [file], which reads the
+     * scenarios in the {@link BatchMode} format.
+     *
+     * @param args the program arguments.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static void run(String[] args) throws IOException {
+        if (TABLE_BUILD_OPTION.equals(args[0])) {
+            build(Paths.get(args.length > 1 ? args[1] : OUTPUT_DEFAULT), parseDims(PGACALC_TABLE_DIMS_TEXT));
+            return;
+        }
+        if (args.length < 2) {
+            throw new IllegalArgumentException("Invalid number of arguments: " + args.length);
+        }
+        final Logger log = Logger.getLogger(DeterministicSpectra.class.toString());
+        final PgaTable table = open(Paths.get(args[1]));
+        try (InputStream is = BatchMode.openInput(args.length > 2 ? args[2] : BatchMode.STDIN_NAME);
+                OutputStream os = BatchMode.openOutput()) {
+            for (Region region : REGIONS) {
+                log.info(String.format("%s%s maximum relative error %.6f", LOG_PREFIX, region,
+                        table.getMaxError(region)));
+            }
+            if (RuptureGeometry.PGACALC_FINITE_FAULT) {
+                log.warning(LOG_PREFIX
+                        + "the tables are for a point source, finite rupture scenarios are calculated exactly");
+            }
+            final LongAdder exactCount = new LongAdder();
+            BatchMode.run(is, os, scenario -> {
+                double[] distances = new double[3];
+                RuptureGeometry rupture = scenario.calcDistances(distances);
+                if (rupture != null
+                        || !table.contains(scenario.getMag(), distances[0], distances[2], scenario.getVs30())) {
+                    exactCount.increment();
+                    return DeterministicSpectra.calcPga(log, scenario);
+                }
+                return table.lookup(scenario.getRegion(), scenario.getMag(), distances[0], distances[2],
+                        scenario.getVs30());
+            });
+            log.info(LOG_PREFIX + exactCount.sum()
+                    + " scenarios outside the tables or with a finite rupture calculated exactly");
+        }
+    }
+
+    private static void write(Path path, int[] dims, Map<Region, float[]> tables) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(headerSize(REGIONS.length)).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION);
+        for (int dim : dims) {
+            header.putInt(dim);
+        }
+        header.putDouble(MAG_MIN).putDouble(MAG_MAX).putDouble(T_R_MAX).putDouble(T_H_MAX).putDouble(T_V_MIN)
+                .putDouble(T_V_MAX);
+        header.putInt(REGIONS.length);
+        for (int i = 0; i < REGIONS.length; i++) {
+            header.putInt(REGIONS[i].ordinal()).putFloat(Float.NaN);
+        }
+        header.flip();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            for (Region region : REGIONS) {
+                float[] table = tables.get(region);
+                ByteBuffer buffer = ByteBuffer.allocate(table.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                buffer.asFloatBuffer().put(table);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+    }
+
+    private final float[] errors;
+    private final double hMax;
+    private final double magMax;
+    private final double magMin;
+    private final int nh;
+    private final int nm;
+    private final int nr;
+    private final int nv;
+    private final int[] offsets;
+    private final double rMax;
+    private final double sh;
+    private final double sm;
+    private final double sr;
+    private final double sv;
+    private final FloatBuffer values;
+    private final double vMax;
+    private final double vMin;
+
+    private PgaTable(ByteBuffer buffer) {
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("not a PGA table file");
+        }
+        nm = buffer.getInt(8);
+        nr = buffer.getInt(12);
+        nh = buffer.getInt(16);
+        nv = buffer.getInt(20);
+        magMin = buffer.getDouble(24);
+        magMax = buffer.getDouble(32);
+        rMax = buffer.getDouble(40);
+        hMax = buffer.getDouble(48);
+        vMin = buffer.getDouble(56);
+        vMax = buffer.getDouble(64);
+        int regionCount = buffer.getInt(72);
+        sm = (nm - 1) / (magMax - magMin);
+        sr = (nr - 1) / rMax;
+        sh = (nh - 1) / hMax;
+        sv = (nv - 1) / (vMax - vMin);
+        int size = nm * nr * nh * nv;
+        offsets = new int[Region.values().length];
+        errors = new float[Region.values().length];
+        Arrays.fill(offsets, -1);
+        for (int i = 0; i < regionCount; i++) {
+            int ordinal = buffer.getInt(ERRORS_POSITION - 4 + i * 8);
+            offsets[ordinal] = i * size;
+            errors[ordinal] = buffer.getFloat(ERRORS_POSITION + i * 8);
+        }
+        buffer.position(headerSize(regionCount));
+        values = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+    }
+
+    /**
+     * Determine if the inputs are inside the table.
+     *
+     * @param mag  the magnitude.
+     * @param rJB  the Joyner-Boore distance.
+     * @param rRup the rupture distance.
+     * @param vs30 the vs30 value.
+     * @return true if inside the table, false otherwise.
+     */
+    public boolean contains(double mag, double rJB, double rRup, double vs30) {
+        double h = Math.sqrt(Math.max(rRup * rRup - rJB * rJB, 0.0));
+        double v = Math.log(vs30);
+        return mag >= magMin && mag <= magMax && rJB >= 0.0 && Math.log1p(rJB) <= rMax && Math.log1p(h) <= hMax
+                && v >= vMin && v <= vMax;
+    }
+
+    /**
+     * Get the maximum relative error measured when the table was built.
+     *
+     * @param region the region.
+     * @return the maximum relative error.
+     */
+    public double getMaxError(Region region) {
+        return errors[region.ordinal()];
+    }
+
+    /**
+     * Look up the PGA value.
+     *
+     * @param region the region.
+     * @param mag    the magnitude.
+     * @param rJB    the Joyner-Boore distance.
+     * @param rRup   the rupture distance.
+     * @param vs30   the vs30 value.
+     * @return the PGA value.
+     * @throws IllegalArgumentException if the region is not in the table or the
+     *                                  inputs are outside the table, see
+     *                                  {@link #contains}.
+     */
+    public double lookup(Region region, double mag, double rJB, double rRup, double vs30) {
+        int offset = offsets[region.ordinal()];
+        if (offset < 0) {
+            throw new IllegalArgumentException("region is not supported: " + region);
+        }
+        if (!contains(mag, rJB, rRup, vs30)) {
+            throw new IllegalArgumentException(String.format("outside the table (mag=%f, rJB=%f, rRup=%f, vs30=%f)",
+                    mag, rJB, rRup, vs30));
+        }
+        double h = Math.sqrt(Math.max(rRup * rRup - rJB * rJB, 0.0));
+        double xm = clamp((mag - magMin) * sm, nm);
+        double xr = clamp(Math.log1p(rJB) * sr, nr);
+        double xh = clamp(Math.log1p(h) * sh, nh);
+        double xv = clamp((Math.log(vs30) - vMin) * sv, nv);
+        int im = Math.min((int) xm, nm - 2);
+        int ir = Math.min((int) xr, nr - 2);
+        int ih = Math.min((int) xh, nh - 2);
+        int iv = Math.min((int) xv, nv - 2);
+        double fm = xm - im, fr = xr - ir, fh = xh - ih, fv = xv - iv;
+        int strideV = 1, strideH = nv, strideR = nh * nv, strideM = nr * nh * nv;
+        int base = offset + im * strideM + ir * strideR + ih * strideH + iv * strideV;
+        double value = 0.0;
+        for (int corner = 0; corner < 16; corner++) {
+            int bm = corner >> 3 & 1, br = corner >> 2 & 1, bh = corner >> 1 & 1, bv = corner & 1;
+            double w = (bm == 0 ? 1.0 - fm : fm) * (br == 0 ? 1.0 - fr : fr) * (bh == 0 ? 1.0 - fh : fh)
+                    * (bv == 0 ? 1.0 - fv : fv);
+            value += w * values.get(base + bm * strideM + br * strideR + bh * strideH + bv * strideV);
+        }
+        return Math.exp(value);
+    }
+
+    private static double clamp(double x, int n) {
+        return x < 0.0 ? 0.0 : x > n - 1 ? n - 1 : x;
+    }
+
+    /**
+     * Measure the maximum relative error against the exact calculation at random
+     * points inside the table.
+     *
+     * @param region  the region.
+     * @param log     the logger for the exact calculation.
+     * @param samples the number of samples.
+     * @return the maximum relative error.
+     */
+    double measureError(Region region, Logger log, int samples) {
+        LogicTree<Gmm> gmmTree = GmmUtil.getGmmTree(region);
+        SplittableRandom random = new SplittableRandom(region.ordinal());
+        double maxError = 0.0;
+        for (int i = 0; i < samples; i++) {
+            double mag = magMin + random.nextDouble() * (magMax - magMin);
+            double rJB = Math.expm1(random.nextDouble() * rMax);
+            double rRup = UtilFns.calcDistanceToRupture(rJB, Math.expm1(random.nextDouble() * hMax));
+            double vs30 = Math.exp(vMin + random.nextDouble() * (vMax - vMin));
+            double exact = DeterministicSpectra.calcPga(log, gmmTree, mag, rJB, rJB, rRup, vs30);
+            double error = Math.abs(lookup(region, mag, rJB, rRup, vs30) - exact) / exact;
+            if (error > maxError) {
+                maxError = error;
+            }
+        }
+        return maxError;
+    }
+}
@@ -0,0 +1,329 @@
+package com.isti.gmpegmm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Region index built from the region boundary polygons.
+ * <p>
+ * The polygons are read from {@link #REGIONS} in precedence order, the first
+ * region with a polygon containing the point (including its boundary) is the
+ * result and {@link Region#GLOBAL} if none. A uniform grid of cells covers the
+ * polygons: a cell that no polygon edge touches has a single region, found once
+ * when the index is built, so only points in cells on a boundary need the
+ * point-in-polygon tests.
+ */
+public class RegionIndex {
+    /** Index cell size in decimal degrees key */
+    public static final String PGACALC_REGION_CELL_KEY = "PGACALC_REGION_CELL";
+    /** Index cell size in decimal degrees text */
+    public static final String PGACALC_REGION_CELL_TEXT = System.getProperty(PGACALC_REGION_CELL_KEY, "0.25");
+    /** The region polygons resource */
+    public static final String REGIONS = "/res/regions.json";
+    private static final byte BOUNDARY = -1;
+    private static final Region[] REGION_VALUES = Region.values();
+
+    private static class Holder {
+        private static final RegionIndex INSTANCE = load();
+    }
+
+    /** @return the region index for the {@link #REGIONS} resource */
+    public static RegionIndex getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Load the region index from the {@link #REGIONS} resource.
+     *
+     * @return the region index.
+     */
+    private static RegionIndex load() {
+        InputStream is = RegionIndex.class.getResourceAsStream(REGIONS);
+        try (Reader reader = new InputStreamReader(is)) {
+            return new RegionIndex(JsonParser.parseReader(reader).getAsJsonArray(),
+                    UtilFns.parseDouble(PGACALC_REGION_CELL_TEXT));
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * Determine if the segment intersects the closed rectangle.
+     *
+     * @param x0   the segment start x.
+     * @param y0   the segment start y.
+     * @param x1   the segment end x.
+     * @param y1   the segment end y.
+     * @param minX the rectangle minimum x.
+     * @param minY the rectangle minimum y.
+     * @param maxX the rectangle maximum x.
+     * @param maxY the rectangle maximum y.
+     * @return true if the segment intersects the rectangle.
+     */
+    static boolean intersects(double x0, double y0, double x1, double y1, double minX, double minY, double maxX,
+            double maxY) {
+        // Liang-Barsky clipping of the segment to the rectangle
+        double dx = x1 - x0;
+        double dy = y1 - y0;
+        double[] p = { -dx, dx, -dy, dy };
+        double[] q = { x0 - minX, maxX - x0, y0 - minY, maxY - y0 };
+        double t0 = 0.0;
+        double t1 = 1.0;
+        for (int i = 0; i < 4; i++) {
+            if (p[i] == 0.0) {
+                if (q[i] < 0.0) {
+                    return false;
+                }
+            } else {
+                double t = q[i] / p[i];
+                if (p[i] < 0.0) {
+                    t0 = Math.max(t0, t);
+                } else {
+                    t1 = Math.min(t1, t);
+                }
+                if (t0 > t1) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private final double cellSize;
+    private final byte[] cells;
+    private final double maxLat;
+    private final double maxLon;
+    private final double minLat;
+    private final double minLon;
+    private final int ncols;
+    private final int nrows;
+    private final Polygon[] polygons;
+
+    /**
+     * Create the region index.
+     *
+     * @param regions  the regions in precedence order, each with an "id" and
+     *                 "polygons", an array of rings of [longitude, latitude]
+     *                 points.
+     * @param cellSize the index cell size in decimal degrees.
+     */
+    public RegionIndex(JsonArray regions, double cellSize) {
+        if (!(cellSize > 0.0)) {
+            throw new IllegalArgumentException("invalid cell size (" + cellSize + ")");
+        }
+        List<Polygon> list = new ArrayList<>();
+        for (JsonElement e : regions) {
+            JsonObject o = e.getAsJsonObject();
+            Region region = Region.valueOf(o.get("id").getAsString());
+            for (JsonElement ring : o.get("polygons").getAsJsonArray()) {
+                list.add(new Polygon(region, ring.getAsJsonArray()));
+            }
+        }
+        polygons = list.toArray(new Polygon[list.size()]);
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (Polygon polygon : polygons) {
+            minX = Math.min(minX, polygon.minLon);
+            minY = Math.min(minY, polygon.minLat);
+            maxX = Math.max(maxX, polygon.maxLon);
+            maxY = Math.max(maxY, polygon.maxLat);
+        }
+        this.cellSize = cellSize;
+        minLon = minX;
+        minLat = minY;
+        maxLon = maxX;
+        maxLat = maxY;
+        ncols = polygons.length == 0 ? 0 : (int) Math.ceil((maxX - minX) / cellSize) + 1;
+        nrows = polygons.length == 0 ? 0 : (int) Math.ceil((maxY - minY) / cellSize) + 1;
+        cells = new byte[ncols * nrows];
+        markBoundaries();
+        for (int row = 0; row < nrows; row++) {
+            for (int col = 0; col < ncols; col++) {
+                int index = row * ncols + col;
+                if (cells[index] != BOUNDARY) {
+                    double lat = minLat + (row + 0.5) * cellSize;
+                    double lon = minLon + (col + 0.5) * cellSize;
+                    cells[index] = (byte) findRegion(lat, lon).ordinal();
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the region with the point-in-polygon tests.
+     *
+     * @param lat the latitude.
+     * @param lon the longitude.
+     * @return the region.
+     */
+    Region findRegion(double lat, double lon) {
+        for (Polygon polygon : polygons) {
+            if (polygon.contains(lat, lon)) {
+                return polygon.region;
+            }
+        }
+        return Region.GLOBAL;
+    }
+
+    /** @return the number of boundary cells */
+    public int getBoundaryCount() {
+        int count = 0;
+        for (byte cell : cells) {
+            if (cell == BOUNDARY) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** @return the number of cells */
+    public int getCellCount() {
+        return cells.length;
+    }
+
+    /**
+     * Get the region for the specified latitude and longitude.
+     *
+     * @param lat the latitude.
+     * @param lon the longitude.
+     * @return the region.
+     */
+    public Region getRegion(double lat, double lon) {
+        if (!(lat >= minLat && lat <= maxLat && lon >= minLon && lon <= maxLon)) {
+            return Region.GLOBAL;
+        }
+        int row = (int) ((lat - minLat) / cellSize);
+        int col = (int) ((lon - minLon) / cellSize);
+        byte cell = cells[row * ncols + col];
+        if (cell != BOUNDARY) {
+            return REGION_VALUES[cell];
+        }
+        return findRegion(lat, lon);
+    }
+
+    /**
+     * Mark the cells touched by a polygon edge as boundary cells.
+     */
+    private void markBoundaries() {
+        for (Polygon polygon : polygons) {
+            int n = polygon.lons.length;
+            for (int i = 0, j = n - 1; i < n; j = i++) {
+                double x0 = polygon.lons[j];
+                double y0 = polygon.lats[j];
+                double x1 = polygon.lons[i];
+                double y1 = polygon.lats[i];
+                int colStart = Math.max(0, (int) ((Math.min(x0, x1) - minLon) / cellSize) - 1);
+                int colEnd = Math.min(ncols - 1, (int) ((Math.max(x0, x1) - minLon) / cellSize) + 1);
+                int rowStart = Math.max(0, (int) ((Math.min(y0, y1) - minLat) / cellSize) - 1);
+                int rowEnd = Math.min(nrows - 1, (int) ((Math.max(y0, y1) - minLat) / cellSize) + 1);
+                for (int row = rowStart; row <= rowEnd; row++) {
+                    double cellLat = minLat + row * cellSize;
+                    for (int col = colStart; col <= colEnd; col++) {
+                        double cellLon = minLon + col * cellSize;
+                        if (intersects(x0, y0, x1, y1, cellLon, cellLat, cellLon + cellSize, cellLat + cellSize)) {
+                            cells[row * ncols + col] = BOUNDARY;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d polygons, %dx%d cells of %s degrees, %d boundary cells", polygons.length,
+                ncols, nrows, cellSize, getBoundaryCount());
+    }
+
+    /**
+     * Region polygon.
+     */
+    private static class Polygon {
+        private final double[] lats;
+        private final double[] lons;
+        private final double maxLat;
+        private final double maxLon;
+        private final double minLat;
+        private final double minLon;
+        private final Region region;
+
+        /**
+         * Create the polygon.
+         *
+         * @param region the region.
+         * @param ring   the [longitude, latitude] points, the last point may repeat
+         *               the first point.
+         */
+        Polygon(Region region, JsonArray ring) {
+            int n = ring.size();
+            if (n > 1 && ring.get(0).equals(ring.get(n - 1))) {
+                n--;
+            }
+            if (n < 3) {
+                throw new IllegalArgumentException("invalid polygon for " + region);
+            }
+            this.region = region;
+            lats = new double[n];
+            lons = new double[n];
+            double minX = Double.POSITIVE_INFINITY;
+            double minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY;
+            double maxY = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < n; i++) {
+                JsonArray point = ring.get(i).getAsJsonArray();
+                lons[i] = point.get(0).getAsDouble();
+                lats[i] = point.get(1).getAsDouble();
+                minX = Math.min(minX, lons[i]);
+                minY = Math.min(minY, lats[i]);
+                maxX = Math.max(maxX, lons[i]);
+                maxY = Math.max(maxY, lats[i]);
+            }
+            minLon = minX;
+            minLat = minY;
+            maxLon = maxX;
+            maxLat = maxY;
+        }
+
+        /**
+         * Determine if the polygon contains the point, including the boundary.
+         *
+         * @param lat the latitude.
+         * @param lon the longitude.
+         * @return true if the polygon contains the point.
+         */
+        boolean contains(double lat, double lon) {
+            if (lat < minLat || lat > maxLat || lon < minLon || lon > maxLon) {
+                return false;
+            }
+            boolean inside = false;
+            int n = lons.length;
+            for (int i = 0, j = n - 1; i < n; j = i++) {
+                double x0 = lons[j];
+                double y0 = lats[j];
+                double x1 = lons[i];
+                double y1 = lats[i];
+                // on the edge
+                if ((lon - x0) * (y1 - y0) == (lat - y0) * (x1 - x0) && lon >= Math.min(x0, x1)
+                        && lon <= Math.max(x0, x1) && lat >= Math.min(y0, y1) && lat <= Math.max(y0, y1)) {
+                    return true;
+                }
+                if ((y1 > lat) != (y0 > lat) && lon < (x0 - x1) * (lat - y1) / (y0 - y1) + x1) {
+                    inside = !inside;
+                }
+            }
+            return inside;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.isti.gmpegmm;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-bounded least recently used cache of calculated values keyed on the
+ * region and the scenario parameters.
+ * <p>
+ * The cache is split into {@link #STRIPES} segments selected by the key hash,
+ * each a synchronized access-ordered {@link LinkedHashMap}, so concurrent
+ * lookups only contend when they hash to the same segment. The value is
+ * calculated outside of the segment lock so two threads missing on the same key
+ * may both calculate it.
+ * <p>
+ * By default the key is the exact bits of the parameters so a cached value is
+ * bit-identical to a fresh calculation. If the
+ * {@link #PGACALC_RESULT_CACHE_QUANTUM_KEY} property is specified the
+ * parameters are rounded to the quantum and the value is calculated from the
+ * rounded parameters, so the cached value does not depend on which scenario
+ * was calculated first.
+ */
+public class ResultCache {
+    /** PGA Calculator result cache quantum key */
+    public static final String PGACALC_RESULT_CACHE_QUANTUM_KEY = "PGACALC_RESULT_CACHE_QUANTUM";
+    /**
+     * PGA Calculator result cache quantum text, the comma separated magnitude,
+     * distance (km) and vs30 (m/s) quanta or null for exact keys
+     */
+    public static final String PGACALC_RESULT_CACHE_QUANTUM_TEXT = System
+            .getProperty(PGACALC_RESULT_CACHE_QUANTUM_KEY);
+    /** PGA Calculator result cache size key */
+    public static final String PGACALC_RESULT_CACHE_SIZE_KEY = "PGACALC_RESULT_CACHE_SIZE";
+    /**
+     * PGA Calculator result cache size text, the maximum number of values or 0
+     * for no cache
+     */
+    public static final String PGACALC_RESULT_CACHE_SIZE_TEXT = System.getProperty(PGACALC_RESULT_CACHE_SIZE_KEY,
+            "0");
+    /** Number of segments */
+    public static final int STRIPES = 16;
+
+    private static class Holder {
+        private static final ResultCache INSTANCE = create();
+    }
+
+    private static ResultCache create() {
+        int size = (int) UtilFns.parseDouble(PGACALC_RESULT_CACHE_SIZE_TEXT);
+        if (size <= 0) {
+            return null;
+        }
+        if (PGACALC_RESULT_CACHE_QUANTUM_TEXT == null) {
+            return new ResultCache(size, 0.0, 0.0, 0.0);
+        }
+        String[] fields = PGACALC_RESULT_CACHE_QUANTUM_TEXT.split(",");
+        if (fields.length != 3) {
+            throw new IllegalArgumentException(
+                    "invalid " + PGACALC_RESULT_CACHE_QUANTUM_KEY + " (" + PGACALC_RESULT_CACHE_QUANTUM_TEXT + ")");
+        }
+        return new ResultCache(size, UtilFns.parseDouble(fields[0].trim()), UtilFns.parseDouble(fields[1].trim()),
+                UtilFns.parseDouble(fields[2].trim()));
+    }
+
+    /**
+     * Get the cache for the {@link #PGACALC_RESULT_CACHE_SIZE_KEY} property.
+     *
+     * @return the cache or null if none.
+     */
+    public static ResultCache getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Round the value to the quantum.
+     *
+     * @param value   the value.
+     * @param quantum the quantum or 0 for none.
+     * @return the rounded value.
+     */
+    private static double quantize(double value, double quantum) {
+        return quantum > 0.0 ? Math.rint(value / quantum) * quantum : value;
+    }
+
+    /** @return the cache statistics text */
+    public static String toStatsString() {
+        ResultCache cache = getInstance();
+        return cache != null ? cache.toString() : "result cache disabled";
+    }
+
+    private final double distanceQuantum;
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder hitCount = new LongAdder();
+    private final double magQuantum;
+    private final LongAdder missCount = new LongAdder();
+    private final Map<Key, Double>[] segments;
+    private final int size;
+    private final double vs30Quantum;
+
+    /**
+     * Create the cache.
+     *
+     * @param size            the maximum number of values.
+     * @param magQuantum      the magnitude quantum or 0 for exact.
+     * @param distanceQuantum the distance quantum in km or 0 for exact.
+     * @param vs30Quantum     the vs30 quantum or 0 for exact.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public ResultCache(int size, double magQuantum, double distanceQuantum, double vs30Quantum) {
+        if (size <= 0 || !(magQuantum >= 0.0) || !(distanceQuantum >= 0.0) || !(vs30Quantum >= 0.0)) {
+            throw new IllegalArgumentException("invalid result cache size or quantum");
+        }
+        this.size = size;
+        this.magQuantum = magQuantum;
+        this.distanceQuantum = distanceQuantum;
+        this.vs30Quantum = vs30Quantum;
+        final int segmentSize = Math.max(1, (size + STRIPES - 1) / STRIPES);
+        segments = new Map[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            segments[i] = new LinkedHashMap<>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Double> eldest) {
+                    if (size() > segmentSize) {
+                        evictionCount.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+    }
+
+    /**
+     * Get the value from the cache or calculate it.
+     *
+     * @param region     the region.
+     * @param mag        the magnitude.
+     * @param rJB        the Joyner-Boore distance.
+     * @param rx         the site to rupture trace distance.
+     * @param rRup       the rupture distance.
+     * @param vs30       the vs30 value.
+     * @param zTop       the depth to the top of the rupture or NaN if the
+     *                   hypocenter, the rupture dip and width depend only on
+     *                   the magnitude.
+     * @param calculator the calculator for the (quantized) parameters.
+     * @return the value.
+     */
+    public double get(Region region, double mag, double rJB, double rx, double rRup, double vs30, double zTop,
+            Calculator calculator) {
+        mag = quantize(mag, magQuantum);
+        rJB = quantize(rJB, distanceQuantum);
+        rx = quantize(rx, distanceQuantum);
+        rRup = quantize(rRup, distanceQuantum);
+        vs30 = quantize(vs30, vs30Quantum);
+        Key key = new Key(region, mag, rJB, rx, rRup, vs30, zTop);
+        Map<Key, Double> segment = segments[key.hash & (STRIPES - 1)];
+        Double value;
+        synchronized (segment) {
+            value = segment.get(key);
+        }
+        if (value != null) {
+            hitCount.increment();
+            return value;
+        }
+        missCount.increment();
+        double result = calculator.calc(mag, rJB, rx, rRup, vs30);
+        synchronized (segment) {
+            segment.put(key, result);
+        }
+        return result;
+    }
+
+    /** @return the number of evictions */
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    /** @return the number of cache hits */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /** @return the number of cache misses */
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /** @return the maximum number of values */
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "result cache hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions="
+                + getEvictionCount();
+    }
+
+    /**
+     * Calculates the value for the parameters.
+     */
+    public interface Calculator {
+        /**
+         * Calculate the value.
+         *
+         * @param mag  the magnitude.
+         * @param rJB  the Joyner-Boore distance.
+         * @param rx   the site to rupture trace distance.
+         * @param rRup the rupture distance.
+         * @param vs30 the vs30 value.
+         * @return the value.
+         */
+        double calc(double mag, double rJB, double rx, double rRup, double vs30);
+    }
+
+    /**
+     * Cache key, the region and the bits of the parameters.
+     */
+    private static class Key {
+        private final int hash;
+        private final long mag;
+        private final int region;
+        private final long rJB;
+        private final long rRup;
+        private final long rx;
+        private final long vs30;
+        private final long zTop;
+
+        private Key(Region region, double mag, double rJB, double rx, double rRup, double vs30, double zTop) {
+            this.region = region.ordinal();
+            this.mag = Double.doubleToLongBits(mag);
+            this.rJB = Double.doubleToLongBits(rJB);
+            this.rx = Double.doubleToLongBits(rx);
+            this.rRup = Double.doubleToLongBits(rRup);
+            this.vs30 = Double.doubleToLongBits(vs30);
+            this.zTop = Double.doubleToLongBits(zTop);
+            long h = this.region;
+            h = h * 31 + this.mag;
+            h = h * 31 + this.rJB;
+            h = h * 31 + this.rx;
+            h = h * 31 + this.rRup;
+            h = h * 31 + this.vs30;
+            h = h * 31 + this.zTop;
+            h *= 0x9e3779b97f4a7c15L;
+            hash = (int) (h ^ (h >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && region == other.region && mag == other.mag && rJB == other.rJB
+                    && rx == other.rx && rRup == other.rRup && vs30 == other.vs30
+                    && zTop == other.zTop;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
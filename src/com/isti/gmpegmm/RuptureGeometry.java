@@ -0,0 +1,198 @@
+package com.isti.gmpegmm;
+
+/**
+ * Rectangular finite-fault rupture geometry.
+ * <p>
+ * The rupture plane is centered on the hypocenter along strike and down dip,
+ * unless that would put the top of the rupture above the surface, in which
+ * case the top is at the surface (or at the hypocenter if it is above the
+ * surface). The strike is measured clockwise from north and the plane dips to
+ * the right of the strike direction.
+ * <p>
+ * The default length and width are the Wells and Coppersmith (1994) subsurface
+ * rupture length and down-dip width for all slip types. The strike and dip of
+ * the {@link #PGACALC_RUPTURE_STRIKE_KEY} and {@link #PGACALC_RUPTURE_DIP_KEY}
+ * properties apply to every earthquake, so the dip and width of a default
+ * rupture depend only on the magnitude. The dip, width and depth to the top of
+ * the rupture are also passed to the ground motion models.
+ */
+public class RuptureGeometry {
+    /** Default dip in degrees */
+    public static final double DIP_DEFAULT = 90.0;
+    /** PGA Calculator finite fault key */
+    public static final String PGACALC_FINITE_FAULT_KEY = "PGACALC_FINITE_FAULT";
+    /**
+     * PGA Calculator finite fault, true to calculate the distances to the
+     * magnitude-scaled rupture instead of to the hypocenter
+     */
+    public static final boolean PGACALC_FINITE_FAULT = Boolean.getBoolean(PGACALC_FINITE_FAULT_KEY);
+    /** PGA Calculator rupture dip key */
+    public static final String PGACALC_RUPTURE_DIP_KEY = "PGACALC_RUPTURE_DIP";
+    /** PGA Calculator rupture dip text in degrees */
+    public static final String PGACALC_RUPTURE_DIP_TEXT = System.getProperty(PGACALC_RUPTURE_DIP_KEY,
+            Double.toString(DIP_DEFAULT));
+    /** PGA Calculator rupture strike key */
+    public static final String PGACALC_RUPTURE_STRIKE_KEY = "PGACALC_RUPTURE_STRIKE";
+    /** PGA Calculator rupture strike text in degrees */
+    public static final String PGACALC_RUPTURE_STRIKE_TEXT = System.getProperty(PGACALC_RUPTURE_STRIKE_KEY, "0");
+
+    /**
+     * Calculate the default rupture length.
+     *
+     * @param mag the magnitude.
+     * @return the length in km.
+     */
+    public static double calcLength(double mag) {
+        return Math.pow(10.0, -2.44 + 0.59 * mag);
+    }
+
+    /**
+     * Calculate the default rupture width.
+     *
+     * @param mag the magnitude.
+     * @return the down-dip width in km.
+     */
+    public static double calcWidth(double mag) {
+        return Math.pow(10.0, -1.01 + 0.32 * mag);
+    }
+
+    /**
+     * Create the rupture with the magnitude-scaled length and width and the
+     * strike and dip from the {@link #PGACALC_RUPTURE_STRIKE_KEY} and
+     * {@link #PGACALC_RUPTURE_DIP_KEY} properties.
+     *
+     * @param mag   the magnitude.
+     * @param lon   the hypocenter longitude.
+     * @param lat   the hypocenter latitude.
+     * @param depth the hypocenter depth in km.
+     * @return the rupture.
+     */
+    public static RuptureGeometry create(double mag, double lon, double lat, double depth) {
+        return new RuptureGeometry(lon, lat, depth, UtilFns.parseDouble(PGACALC_RUPTURE_STRIKE_TEXT),
+                UtilFns.parseDouble(PGACALC_RUPTURE_DIP_TEXT), calcLength(mag), calcWidth(mag));
+    }
+
+    private final double cosDip;
+    private final double cosStrike;
+    private final double depth;
+    private final double dip;
+    private final double halfLength;
+    private final double lat;
+    private final double length;
+    private final double lon;
+    private final double sinDip;
+    private final double sinStrike;
+    private final double strike;
+    private final double topOffset;
+    private final double width;
+    private final double zTop;
+
+    /**
+     * Create the rupture.
+     *
+     * @param lon    the hypocenter longitude.
+     * @param lat    the hypocenter latitude.
+     * @param depth  the hypocenter depth in km.
+     * @param strike the strike in degrees.
+     * @param dip    the dip in degrees (0 to 90).
+     * @param length the length in km, 0 for a point source.
+     * @param width  the down-dip width in km, 0 for a line source.
+     */
+    public RuptureGeometry(double lon, double lat, double depth, double strike, double dip, double length,
+            double width) {
+        if (!(dip > 0.0 && dip <= 90.0)) {
+            throw new IllegalArgumentException("invalid dip (" + dip + ")");
+        }
+        if (!(length >= 0.0) || !(width >= 0.0)) {
+            throw new IllegalArgumentException("invalid length (" + length + ") or width (" + width + ")");
+        }
+        this.lon = lon;
+        this.lat = lat;
+        this.depth = depth;
+        this.strike = strike;
+        this.dip = dip;
+        this.length = length;
+        this.width = width;
+        double strikeRad = Math.toRadians(strike);
+        double dipRad = Math.toRadians(dip);
+        cosStrike = Math.cos(strikeRad);
+        sinStrike = Math.sin(strikeRad);
+        cosDip = dip == 90.0 ? 0.0 : Math.cos(dipRad);
+        sinDip = dip == 90.0 ? 1.0 : Math.sin(dipRad);
+        halfLength = length * 0.5;
+        zTop = Math.max(Math.min(depth, 0.0), depth - width * 0.5 * sinDip);
+        // horizontal offset of the top edge from the hypocenter in the dip
+        // direction, negative since the top edge is up dip
+        topOffset = -(depth - zTop) * cosDip / sinDip;
+    }
+
+    /**
+     * Calculate the distances for the site relative to the hypocenter.
+     *
+     * @param east     the site distance east of the hypocenter in km.
+     * @param north    the site distance north of the hypocenter in km.
+     * @param out      the distances: rJB, rX and rRup.
+     * @param outIndex the index of rJB in the distances.
+     */
+    void calcDistances(double east, double north, double[] out, int outIndex) {
+        // along strike and toward the dip direction
+        double s = east * sinStrike + north * cosStrike;
+        double t = east * cosStrike - north * sinStrike - topOffset;
+        double ds = Math.max(0.0, Math.abs(s) - halfLength);
+        double surfaceWidth = width * cosDip;
+        double dt = t < 0.0 ? -t : t > surfaceWidth ? t - surfaceWidth : 0.0;
+        out[outIndex] = Math.sqrt(ds * ds + dt * dt);
+        out[outIndex + 1] = t;
+        // closest point on the plane, the site is at the surface
+        double b = Math.min(width, Math.max(0.0, t * cosDip - zTop * sinDip));
+        double dy = t - b * cosDip;
+        double dz = zTop + b * sinDip;
+        out[outIndex + 2] = Math.sqrt(ds * ds + dy * dy + dz * dz);
+    }
+
+    /** @return the hypocenter depth in km */
+    public double getDepth() {
+        return depth;
+    }
+
+    /** @return the dip in degrees */
+    public double getDip() {
+        return dip;
+    }
+
+    /** @return the hypocenter latitude */
+    public double getLat() {
+        return lat;
+    }
+
+    /** @return the length in km */
+    public double getLength() {
+        return length;
+    }
+
+    /** @return the hypocenter longitude */
+    public double getLon() {
+        return lon;
+    }
+
+    /** @return the strike in degrees */
+    public double getStrike() {
+        return strike;
+    }
+
+    /** @return the down-dip width in km */
+    public double getWidth() {
+        return width;
+    }
+
+    /** @return the depth to the top of the rupture in km */
+    public double getZTop() {
+        return zTop;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("lon=%f, lat=%f, depth=%f, strike=%f, dip=%f, length=%f, width=%f, zTop=%f", lon, lat,
+                depth, strike, dip, length, width, zTop);
+    }
+}
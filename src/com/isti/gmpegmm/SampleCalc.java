@@ -0,0 +1,421 @@
+package com.isti.gmpegmm;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import gov.usgs.earthquake.nshmp.gmm.Gmm;
+import gov.usgs.earthquake.nshmp.gmm.GmmInput;
+import gov.usgs.earthquake.nshmp.gmm.GroundMotion;
+import gov.usgs.earthquake.nshmp.gmm.Imt;
+import gov.usgs.earthquake.nshmp.tree.Branch;
+import gov.usgs.earthquake.nshmp.tree.LogicTree;
+
+/**
+ * Calculates percentiles of the PGA value by Monte Carlo sampling of the branch
+ * choice and the aleatory variability.
+ * <p>
+ * Each realization picks a branch of the region logic tree and of the ground
+ * motion logic tree of the model by weight and draws the log PGA value from a
+ * normal distribution with the branch log mean and sigma. The
+ * {@link #PGACALC_SAMPLE_PERCENTILES_KEY} percentiles of the
+ * {@link #PGACALC_SAMPLE_COUNT_KEY} realizations are reported in g.
+ * <p>
+ * Each scenario has its own {@link SplittableRandom} split in input order from
+ * one seeded with the {@link #PGACALC_SAMPLE_SEED_KEY} property, and the
+ * realizations of a scenario are drawn in order by one thread, so the results
+ * do not depend on the number of threads. The scenarios are read in blocks of
+ * {@link #BLOCK_SIZE} which are calculated in parallel on the common fork/join
+ * pool, each task drawing into one primitive array that it reuses for its
+ * scenarios.
+ */
+public class SampleCalc {
+    private static final String LOG_PREFIX = UtilFns.getLogPrefix(SampleCalc.class);
+    /** Number of scenarios read before they are calculated */
+    public static final int BLOCK_SIZE = 1024;
+    /** PGA Calculator sample count key */
+    public static final String PGACALC_SAMPLE_COUNT_KEY = "PGACALC_SAMPLE_COUNT";
+    /** PGA Calculator sample count text, the number of realizations per scenario */
+    public static final String PGACALC_SAMPLE_COUNT_TEXT = System.getProperty(PGACALC_SAMPLE_COUNT_KEY, "10000");
+    /** PGA Calculator sample percentiles key */
+    public static final String PGACALC_SAMPLE_PERCENTILES_KEY = "PGACALC_SAMPLE_PERCENTILES";
+    /** PGA Calculator sample percentiles text, comma separated */
+    public static final String PGACALC_SAMPLE_PERCENTILES_TEXT = System.getProperty(PGACALC_SAMPLE_PERCENTILES_KEY,
+            "5,16,50,84,95");
+    /** PGA Calculator sample seed key */
+    public static final String PGACALC_SAMPLE_SEED_KEY = "PGACALC_SAMPLE_SEED";
+    /** PGA Calculator sample seed text */
+    public static final String PGACALC_SAMPLE_SEED_TEXT = System.getProperty(PGACALC_SAMPLE_SEED_KEY, "1");
+    /** Sample mode command line option */
+    public static final String SAMPLE_OPTION = "--sample";
+
+    /**
+     * Parse the percentiles.
+     *
+     * @param text the comma separated percentiles.
+     * @return the percentiles.
+     * @throws IllegalArgumentException if a percentile is not between 0 and 100.
+     */
+    public static double[] parsePercentiles(String text) {
+        String[] fields = text.split(",");
+        double[] percentiles = new double[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            percentiles[i] = UtilFns.parseDouble(fields[i].trim());
+            if (!(percentiles[i] >= 0.0 && percentiles[i] <= 100.0)) {
+                throw new IllegalArgumentException("invalid percentile (" + fields[i] + ")");
+            }
+        }
+        return percentiles;
+    }
+
+    /**
+     * Get the percentile of the sorted values with linear interpolation between
+     * the closest ranks.
+     *
+     * @param sorted     the sorted values.
+     * @param count      the number of values.
+     * @param percentile the percentile.
+     * @return the percentile value.
+     */
+    static double percentile(double[] sorted, int count, double percentile) {
+        double rank = (count - 1) * percentile / 100.0;
+        int lo = (int) rank;
+        if (lo >= count - 1) {
+            return sorted[count - 1];
+        }
+        return sorted[lo] + (rank - lo) * (sorted[lo + 1] - sorted[lo]);
+    }
+
+    /**
+     * Run the sample mode: {@link #SAMPLE_OPTION} followed by the scenario
+     * arguments, or by an optional file of scenarios in the {@link BatchMode}
+     * format.
+     *
+     * @param args the program arguments.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static void run(String[] args) throws IOException {
+        final Logger log = Logger.getLogger(DeterministicSpectra.class.toString());
+        final SampleCalc calc = new SampleCalc((int) UtilFns.parseDouble(PGACALC_SAMPLE_COUNT_TEXT),
+                parsePercentiles(PGACALC_SAMPLE_PERCENTILES_TEXT), (long) UtilFns.parseDouble(PGACALC_SAMPLE_SEED_TEXT));
+        if (args.length > Scenario.MIN_ARGS) {
+            String[] scenarioArgs = new String[args.length - 1];
+            System.arraycopy(args, 1, scenarioArgs, 0, scenarioArgs.length);
+            // the same realizations as the first scenario of a batch
+            String record = calc.calcRecord(log, Scenario.parse(scenarioArgs), new SplittableRandom(calc.seed).split(),
+                    calc.new Scratch());
+            log.info(LOG_PREFIX + record);
+            System.out.println(record);
+            return;
+        }
+        try (InputStream is = BatchMode.openInput(args.length > 1 ? args[1] : BatchMode.STDIN_NAME);
+                OutputStream os = BatchMode.openOutput()) {
+            calc.run(is, os);
+        }
+    }
+
+    private final int count;
+    private final double[] percentiles;
+    private final long seed;
+
+    /**
+     * Create the calculator.
+     *
+     * @param count       the number of realizations per scenario.
+     * @param percentiles the percentiles.
+     * @param seed        the seed.
+     */
+    public SampleCalc(int count, double[] percentiles, long seed) {
+        if (count < 1) {
+            throw new IllegalArgumentException("invalid sample count (" + count + ")");
+        }
+        this.count = count;
+        this.percentiles = percentiles.clone();
+        this.seed = seed;
+    }
+
+    /**
+     * Calculate the percentiles.
+     *
+     * @param gmmTree the logic tree.
+     * @param input   the input.
+     * @param random  the random number generator for the scenario.
+     * @param scratch the scratch arrays of the calling thread.
+     * @param out     the PGA values in percentile order.
+     */
+    void calc(LogicTree<Gmm> gmmTree, GmmInput input, SplittableRandom random, Scratch scratch, double[] out) {
+        // the cumulative weight, log mean and sigma of each ground motion branch
+        int branches = 0;
+        double total = 0.0;
+        for (int i = 0; i < gmmTree.size(); i++) {
+            Branch<Gmm> branch = gmmTree.get(i);
+            LogicTree<GroundMotion> gmTree = GmmCache.getInstance(branch.value(), Imt.PGA).calc(input);
+            scratch.ensureBranches(branches + gmTree.size());
+            for (int j = 0; j < gmTree.size(); j++) {
+                Branch<GroundMotion> gmBranch = gmTree.get(j);
+                total += branch.weight() * gmBranch.weight();
+                scratch.cumWeights[branches] = total;
+                scratch.means[branches] = gmBranch.value().mean();
+                scratch.sigmas[branches] = gmBranch.value().sigma();
+                branches++;
+            }
+        }
+        final double[] cumWeights = scratch.cumWeights;
+        final double[] means = scratch.means;
+        final double[] sigmas = scratch.sigmas;
+        final double[] samples = scratch.samples;
+        final int last = branches - 1;
+        boolean haveSpare = false;
+        double spare = 0.0;
+        for (int n = 0; n < count; n++) {
+            double u = random.nextDouble() * total;
+            int b = 0;
+            while (b < last && u >= cumWeights[b]) {
+                b++;
+            }
+            // Marsaglia polar method, the second normal value is used by the next draw
+            double z;
+            if (haveSpare) {
+                z = spare;
+                haveSpare = false;
+            } else {
+                double x;
+                double y;
+                double s;
+                do {
+                    x = 2.0 * random.nextDouble() - 1.0;
+                    y = 2.0 * random.nextDouble() - 1.0;
+                    s = x * x + y * y;
+                } while (s >= 1.0 || s == 0.0);
+                double f = Math.sqrt(-2.0 * Math.log(s) / s);
+                z = x * f;
+                spare = y * f;
+                haveSpare = true;
+            }
+            samples[n] = means[b] + sigmas[b] * z;
+        }
+        Arrays.sort(samples, 0, count);
+        for (int k = 0; k < percentiles.length; k++) {
+            out[k] = Math.exp(percentile(samples, count, percentiles[k]));
+        }
+    }
+
+    /**
+     * Calculate the sample record for the scenario.
+     *
+     * @param log      the logger.
+     * @param scenario the scenario.
+     * @param random   the random number generator for the scenario.
+     * @param scratch  the scratch arrays of the calling thread.
+     * @return the record with a comma separated percentile=value for each
+     *         percentile.
+     */
+    String calcRecord(Logger log, Scenario scenario, SplittableRandom random, Scratch scratch) {
+        LogicTree<Gmm> gmmTree = GmmUtil.getGmmTree(scenario.getRegion());
+        if (gmmTree == null) {
+            throw new IllegalArgumentException("unsupported region (" + scenario.getRegion() + ")");
+        }
+        double[] distances = new double[3];
+        RuptureGeometry rupture = scenario.calcDistances(distances);
+        if (log.isLoggable(Level.INFO)) {
+            log.info(scenario.toLogString(distances));
+        }
+        double[] values = scratch.values;
+        calc(gmmTree, DeterministicSpectra.createInput(scenario.getMag(), distances[0], distances[1], distances[2],
+                scenario.getVs30(), rupture), random, scratch, values);
+        StringBuilder sb = new StringBuilder(percentiles.length * 24);
+        for (int i = 0; i < percentiles.length; i++) {
+            if (i != 0) {
+                sb.append(',');
+            }
+            sb.append(percentiles[i]).append('=').append(String.format("%f", values[i]));
+        }
+        return sb.toString();
+    }
+
+    /** @return the percentiles */
+    public double[] getPercentiles() {
+        return percentiles.clone();
+    }
+
+    /**
+     * Calculate the sample records for the scenarios from the input stream, one
+     * record per scenario in input order. If a scenario is not valid the
+     * {@link DeterministicSpectra#PGACALC_NO_RESULT_KEY} value (or an empty line
+     * if none) is written in its place.
+     *
+     * @param is the input stream.
+     * @param os the output stream.
+     * @return the number of scenarios.
+     * @throws IOException if an I/O error occurs.
+     */
+    public long run(InputStream is, OutputStream os) throws IOException {
+        final Logger log = Logger.getLogger(DeterministicSpectra.class.toString());
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(is, UtilFns.CHARSET),
+                UtilFns.DEFAULT_BUFFER_SIZE);
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(os, UtilFns.CHARSET),
+                UtilFns.DEFAULT_BUFFER_SIZE);
+        final SplittableRandom root = new SplittableRandom(seed);
+        final Block block = new Block(log);
+        final long start = System.nanoTime();
+        long total = 0;
+        long lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith(BatchMode.COMMENT_PREFIX)) {
+                continue;
+            }
+            total++;
+            // split for every scenario so the realizations only depend on the input order
+            block.add(line, lineNumber, root.split());
+            if (block.size == BLOCK_SIZE) {
+                block.calc(writer);
+            }
+        }
+        block.calc(writer);
+        writer.flush();
+        log.info(String.format("%s%d scenarios, %d realizations each in %d ms", LOG_PREFIX, total, count,
+                (System.nanoTime() - start) / 1000000));
+        return total;
+    }
+
+    /**
+     * A block of scenarios that are calculated in parallel.
+     */
+    private class Block {
+        private final long[] lineNumbers = new long[BLOCK_SIZE];
+        private final String[] lines = new String[BLOCK_SIZE];
+        private final Logger log;
+        private final String noResultText = DeterministicSpectra.PGACALC_NO_RESULT_TEXT != null
+                ? DeterministicSpectra.PGACALC_NO_RESULT_TEXT
+                : UtilFns.EMPTY_STRING;
+        private final SplittableRandom[] randoms = new SplittableRandom[BLOCK_SIZE];
+        private final String[] records = new String[BLOCK_SIZE];
+        private int size;
+
+        Block(Logger log) {
+            this.log = log;
+        }
+
+        /**
+         * Add the scenario.
+         *
+         * @param line       the scenario line.
+         * @param lineNumber the line number.
+         * @param random     the random number generator for the scenario.
+         */
+        void add(String line, long lineNumber, SplittableRandom random) {
+            lines[size] = line;
+            lineNumbers[size] = lineNumber;
+            randoms[size] = random;
+            size++;
+        }
+
+        /**
+         * Calculate the scenarios and write the records.
+         *
+         * @param writer the writer.
+         * @throws IOException if an I/O error occurs.
+         */
+        void calc(Writer writer) throws IOException {
+            if (size == 0) {
+                return;
+            }
+            int threshold = Math.max(1, size / (ForkJoinPool.getCommonPoolParallelism() * 4));
+            ForkJoinPool.commonPool().invoke(new BlockTask(this, 0, size, threshold));
+            for (int i = 0; i < size; i++) {
+                writer.write(records[i]);
+                writer.write('\n');
+                lines[i] = null;
+                randoms[i] = null;
+                records[i] = null;
+            }
+            size = 0;
+        }
+
+        /**
+         * Calculate the scenarios.
+         *
+         * @param from the first scenario.
+         * @param to   the scenario after the last scenario.
+         */
+        void calc(int from, int to) {
+            Scratch scratch = new Scratch();
+            for (int i = from; i < to; i++) {
+                try {
+                    records[i] = calcRecord(log, BatchMode.parseScenario(lines[i]), randoms[i], scratch);
+                } catch (RuntimeException ex) {
+                    log.warning(LOG_PREFIX + "line " + lineNumbers[i] + ": " + ex.toString());
+                    records[i] = noResultText;
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates a range of the scenarios of a block.
+     */
+    private static class BlockTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Block block;
+        private final int from;
+        private final int threshold;
+        private final int to;
+
+        BlockTask(Block block, int from, int to, int threshold) {
+            this.block = block;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > threshold) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new BlockTask(block, from, mid, threshold), new BlockTask(block, mid, to, threshold));
+                return;
+            }
+            block.calc(from, to);
+        }
+    }
+
+    /**
+     * The arrays used by one thread, the branch arrays grow as needed.
+     */
+    class Scratch {
+        private double[] cumWeights = new double[16];
+        private double[] means = new double[16];
+        private final double[] samples = new double[count];
+        private double[] sigmas = new double[16];
+        private final double[] values = new double[percentiles.length];
+
+        /**
+         * Make sure the branch arrays have room for the branches.
+         *
+         * @param size the number of branches.
+         */
+        void ensureBranches(int size) {
+            if (cumWeights.length < size) {
+                int length = Math.max(size, cumWeights.length * 2);
+                cumWeights = Arrays.copyOf(cumWeights, length);
+                means = Arrays.copyOf(means, length);
+                sigmas = Arrays.copyOf(sigmas, length);
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.isti.gmpegmm;
+
+import com.isti.gmpegmm.Metrics.ErrorCause;
+
+import gov.usgs.earthquake.nshmp.geo.Location;
+
+/**
+ * A validated site and earthquake scenario.
+ */
+public class Scenario {
+    /** Minimum number of arguments */
+    public static final int MIN_ARGS = 7;
+
+    /**
+     * Parse the scenario from the program arguments.
+     *
+     * @param args the arguments: site name, site longitude, site latitude,
+     *             earthquake magnitude, earthquake longitude, earthquake latitude,
+     *             earthquake depth and optional vs30, if none the
+     *             {@link Vs30Raster} or default value is used.
+     * @return the scenario.
+     * @throws IllegalArgumentException if the arguments are not valid or the
+     *                                  region is not supported.
+     */
+    public static Scenario parse(String... args) {
+        if (args.length < MIN_ARGS) {
+            Metrics.recordError(ErrorCause.BAD_INPUT);
+            throw new IllegalArgumentException("Invalid number of arguments: " + args.length);
+        }
+        String siteName = args[0];
+        String siteLonText = args[1];
+        String siteLatText = args[2];
+        String eqMagText = args[3];
+        String eqLonText = args[4];
+        String eqLatText = args[5];
+        String eqDepthText = args[6];
+        double vs30 = Double.NaN;
+        if (args.length > MIN_ARGS) {
+            try {
+                vs30 = parseVs30(args[MIN_ARGS]);
+            } catch (IllegalArgumentException ex) {
+                Metrics.recordError(ErrorCause.BAD_VS30);
+                throw ex;
+            }
+        }
+
+        // the cause is advanced as each value is checked
+        ErrorCause cause = ErrorCause.BAD_MAGNITUDE;
+        try {
+            double mag = UtilFns.checkMagnitude(eqMagText);
+            cause = ErrorCause.BAD_LOCATION;
+            double siteLon = UtilFns.checkLongitude(siteLonText);
+            double siteLat = UtilFns.checkLatitude(siteLatText);
+            if (Double.isNaN(vs30)) {
+                vs30 = Vs30Raster.getVs30(siteLat, siteLon);
+            }
+            Region region = Region.getRegion(siteLat, siteLon);
+            switch (region) {
+            case CEUS:
+            case COUS:
+            case WUS:
+                break;
+            default:
+                cause = ErrorCause.UNSUPPORTED_REGION;
+                throw new IllegalArgumentException("region is not supported: " + region);
+            }
+            double eqLon = UtilFns.checkLongitude(eqLonText);
+            double eqLat = UtilFns.checkLatitude(eqLatText);
+            cause = ErrorCause.BAD_DEPTH;
+            double depth = UtilFns.checkDepth(eqDepthText);
+            return new Scenario(siteName, siteLon, siteLat, region, mag, eqLon, eqLat, depth, vs30);
+        } catch (IllegalArgumentException ex) {
+            Metrics.recordError(cause);
+            throw ex;
+        }
+    }
+
+    /**
+     * Parse the optional vs30 value.
+     *
+     * @param text the vs30 text, null or empty if none.
+     * @return the vs30 value or NaN if none.
+     * @throws IllegalArgumentException if the vs30 value is not valid.
+     */
+    public static double parseVs30(String text) {
+        if (text == null || text.isEmpty()) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(text);
+        } catch (Exception ex) {
+            throw new IllegalArgumentException("invalid vs30 argument (" + text + ")");
+        }
+    }
+
+    private final double depth;
+    private final double eqLat;
+    private final double eqLon;
+    private final double mag;
+    private final Region region;
+    private final double siteLat;
+    private final double siteLon;
+    private final String siteName;
+    private final double vs30;
+
+    /**
+     * Create the scenario.
+     *
+     * @param siteName the site name.
+     * @param siteLon  the site longitude.
+     * @param siteLat  the site latitude.
+     * @param region   the site region.
+     * @param mag      the earthquake magnitude.
+     * @param eqLon    the earthquake longitude.
+     * @param eqLat    the earthquake latitude.
+     * @param depth    the earthquake depth.
+     * @param vs30     the vs30 value.
+     */
+    public Scenario(String siteName, double siteLon, double siteLat, Region region, double mag, double eqLon,
+            double eqLat, double depth, double vs30) {
+        this.siteName = siteName;
+        this.siteLon = siteLon;
+        this.siteLat = siteLat;
+        this.region = region;
+        this.mag = mag;
+        this.eqLon = eqLon;
+        this.eqLat = eqLat;
+        this.depth = depth;
+        this.vs30 = vs30;
+    }
+
+    /**
+     * Calculate the horizontal distance between the site and the earthquake.
+     *
+     * @return the distance.
+     */
+    public double calcDistance() {
+        Location siteLocation = UtilFns.createLocation(siteLat, siteLon);
+        Location eqLocation = UtilFns.createLocation(eqLat, eqLon, depth);
+        return UtilFns.calcDistance(siteLocation, eqLocation);
+    }
+
+    /**
+     * Calculate the distances between the site and the rupture, the
+     * {@link RuptureGeometry} if {@link RuptureGeometry#PGACALC_FINITE_FAULT} is
+     * true or the hypocenter otherwise.
+     *
+     * @param out the Joyner-Boore, site to rupture trace and rupture distances.
+     * @return the rupture or null if the hypocenter.
+     */
+    public RuptureGeometry calcDistances(double[] out) {
+        if (RuptureGeometry.PGACALC_FINITE_FAULT) {
+            RuptureGeometry rupture = RuptureGeometry.create(mag, eqLon, eqLat, depth);
+            DistanceKernel.calc(rupture, siteLat, siteLon, out);
+            return rupture;
+        }
+        double distance = calcDistance();
+        out[0] = distance;
+        out[1] = distance;
+        out[2] = UtilFns.calcDistanceToRupture(distance, depth);
+        return null;
+    }
+
+    /** @return the earthquake depth */
+    public double getDepth() {
+        return depth;
+    }
+
+    /** @return the earthquake latitude */
+    public double getEqLat() {
+        return eqLat;
+    }
+
+    /** @return the earthquake longitude */
+    public double getEqLon() {
+        return eqLon;
+    }
+
+    /** @return the earthquake magnitude */
+    public double getMag() {
+        return mag;
+    }
+
+    /** @return the site region */
+    public Region getRegion() {
+        return region;
+    }
+
+    /** @return the site latitude */
+    public double getSiteLat() {
+        return siteLat;
+    }
+
+    /** @return the site longitude */
+    public double getSiteLon() {
+        return siteLon;
+    }
+
+    /** @return the site name */
+    public String getSiteName() {
+        return siteName;
+    }
+
+    /** @return the vs30 value */
+    public double getVs30() {
+        return vs30;
+    }
+
+    /**
+     * Get the scenario log text.
+     *
+     * @param distances the Joyner-Boore, site to rupture trace and rupture
+     *                  distances, see {@link #calcDistances(double[])}.
+     * @return the log text.
+     */
+    public String toLogString(double[] distances) {
+        return String.format("site=%s, region=%s, mag=%f, depth=%f, rJB=%f, rX=%f, rRup=%f, vs30=%f", siteName,
+                region, mag, depth, distances[0], distances[1], distances[2], vs30);
+    }
+}
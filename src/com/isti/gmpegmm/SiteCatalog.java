@@ -0,0 +1,465 @@
+package com.isti.gmpegmm;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+import gov.usgs.earthquake.nshmp.geo.Location;
+import gov.usgs.earthquake.nshmp.gmm.Gmm;
+import gov.usgs.earthquake.nshmp.tree.LogicTree;
+
+/**
+ * Memory-mapped catalog of sites.
+ * <p>
+ * The file is little-endian with a {@link #HEADER_SIZE} byte header (magic,
+ * version, number of sites, name table length and a reserved long) followed by
+ * the columns: the longitudes and latitudes as doubles, the vs30 values as
+ * floats (NaN if none), the name offsets as ints (one more than the number of
+ * sites) and the UTF-8 name table. The columns are read directly from the mapped file so no
+ * objects are created per site unless a name or {@link Location} is requested.
+ */
+public class SiteCatalog {
+    /**
+     * Consumer of a chunk of sites.
+     */
+    public interface ChunkConsumer {
+        /**
+         * Accept the chunk.
+         *
+         * @param from the first site.
+         * @param to   the site after the last site.
+         */
+        void accept(int from, int to);
+    }
+
+    private static final String LOG_PREFIX = UtilFns.getLogPrefix(SiteCatalog.class);
+    /** Catalog build command line option */
+    public static final String CATALOG_BUILD_OPTION = "--catalog-build";
+    /** Number of sites in each parallel chunk */
+    public static final int CHUNK_SIZE = 4096;
+    /** Header size in bytes */
+    public static final int HEADER_SIZE = 4 * 2 + 8 * 3;
+    /** Magic number */
+    public static final int MAGIC = 0x54435347; // "GSCT" little-endian
+    /** Sites mode command line option */
+    public static final String SITES_OPTION = "--sites";
+    /** Catalog version */
+    public static final int VERSION = 1;
+
+    /**
+     * Convert the CSV sites to a catalog. Each line has the site name,
+     * longitude, latitude and optional vs30 in the {@link BatchMode} CSV format,
+     * blank lines, lines starting with {@link BatchMode#COMMENT_PREFIX} and a
+     * header line (a first line with a longitude that is not a number) are
+     * ignored.
+     *
+     * @param is   the CSV input stream.
+     * @param path the catalog path.
+     * @return the number of sites.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static int convert(InputStream is, Path path) throws IOException {
+        int count = 0;
+        double[] lons = new double[1024];
+        double[] lats = new double[1024];
+        float[] vs30s = new float[1024];
+        int[] nameOffsets = new int[1025];
+        ByteArrayOutputStream names = new ByteArrayOutputStream();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, UtilFns.CHARSET));
+        String line;
+        int lineNumber = 0;
+        boolean headerChecked = false;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith(BatchMode.COMMENT_PREFIX)) {
+                continue;
+            }
+            String[] fields = BatchMode.parseCsv(line);
+            if (fields.length < 3 || fields.length > 4) {
+                throw new IllegalArgumentException("invalid site on line " + lineNumber + ": " + line);
+            }
+            if (!headerChecked) {
+                headerChecked = true;
+                if (!isNumber(fields[1])) {
+                    continue;
+                }
+            }
+            if (count == lons.length) {
+                int size = count * 2;
+                lons = Arrays.copyOf(lons, size);
+                lats = Arrays.copyOf(lats, size);
+                vs30s = Arrays.copyOf(vs30s, size);
+                nameOffsets = Arrays.copyOf(nameOffsets, size + 1);
+            }
+            lons[count] = UtilFns.checkLongitude(fields[1]);
+            lats[count] = UtilFns.checkLatitude(fields[2]);
+            vs30s[count] = fields.length > 3 ? (float) Scenario.parseVs30(fields[3]) : Float.NaN;
+            byte[] name = fields[0].getBytes(UtilFns.CHARSET);
+            names.write(name, 0, name.length);
+            count++;
+            nameOffsets[count] = names.size();
+        }
+        long size = HEADER_SIZE + (long) count * (8 + 8 + 4 + 4) + 4 + names.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("too many sites: " + count);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE * 8).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(count).putLong(names.size()).putLong(0);
+            for (int i = 0; i < count; i++) {
+                flush(channel, buffer, 8);
+                buffer.putDouble(lons[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                flush(channel, buffer, 8);
+                buffer.putDouble(lats[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                flush(channel, buffer, 4);
+                buffer.putFloat(vs30s[i]);
+            }
+            for (int i = 0; i <= count; i++) {
+                flush(channel, buffer, 4);
+                buffer.putInt(nameOffsets[i]);
+            }
+            write(channel, buffer);
+            buffer = ByteBuffer.wrap(names.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Write the buffer if it does not have the space remaining.
+     *
+     * @param channel the file channel.
+     * @param buffer  the buffer.
+     * @param space   the space needed.
+     * @throws IOException if an I/O error occurs.
+     */
+    private static void flush(FileChannel channel, ByteBuffer buffer, int space) throws IOException {
+        if (buffer.remaining() < space) {
+            write(channel, buffer);
+        }
+    }
+
+    /**
+     * Determine if the text is a number.
+     *
+     * @param text the text.
+     * @return true if a number, false otherwise.
+     */
+    private static boolean isNumber(String text) {
+        try {
+            Double.parseDouble(text);
+            return true;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Open the catalog.
+     *
+     * @param name the file name or resource name, see
+     *             {@link UtilFns#findFile(String)}.
+     * @return the catalog.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static SiteCatalog open(String name) throws IOException {
+        File file = UtilFns.findFile(name);
+        if (file == null) {
+            throw new FileNotFoundException("Could not find site catalog (" + name + ")");
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new SiteCatalog(channel.map(MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Run the catalog modes: {@link #CATALOG_BUILD_OPTION} csv catalog or
+     * {@link #SITES_OPTION} catalog eqMag eqLon eqLat eqDepth.
+     *
+     * @param args the program arguments.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static void run(String[] args) throws IOException {
+        final Logger log = Logger.getLogger(DeterministicSpectra.class.toString());
+        if (CATALOG_BUILD_OPTION.equals(args[0])) {
+            if (args.length != 3) {
+                throw new IllegalArgumentException("Invalid number of arguments: " + args.length);
+            }
+            try (InputStream is = BatchMode.openInput(args[1])) {
+                int count = convert(is, Paths.get(args[2]));
+                log.info(LOG_PREFIX + count + " sites written to " + args[2]);
+            }
+            return;
+        }
+        if (args.length != 6) {
+            throw new IllegalArgumentException("Invalid number of arguments: " + args.length);
+        }
+        SiteCatalog catalog = open(args[1]);
+        double mag = UtilFns.checkMagnitude(args[2]);
+        double eqLon = UtilFns.checkLongitude(args[3]);
+        double eqLat = UtilFns.checkLatitude(args[4]);
+        double depth = UtilFns.checkDepth(args[5]);
+        long start = System.nanoTime();
+        float[] values = catalog.calcPga(mag, eqLon, eqLat, depth);
+        log.info(String.format("%s%d sites in %d ms", LOG_PREFIX, values.length,
+                (System.nanoTime() - start) / 1000000));
+        try (OutputStream os = BatchMode.openOutput();
+                Writer writer = new OutputStreamWriter(os, UtilFns.CHARSET)) {
+            catalog.write(writer, values);
+        }
+    }
+
+    /**
+     * Get a little-endian slice of the buffer.
+     *
+     * @param buffer   the buffer.
+     * @param position the slice position.
+     * @param length   the slice length.
+     * @return the slice.
+     */
+    private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+        ByteBuffer b = buffer.duplicate();
+        b.position(position);
+        b.limit(position + length);
+        return b.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Write the buffer and clear it.
+     *
+     * @param channel the file channel.
+     * @param buffer  the buffer.
+     * @throws IOException if an I/O error occurs.
+     */
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private final DoubleBuffer lats;
+    private final DoubleBuffer lons;
+    private final IntBuffer nameOffsets;
+    private final ByteBuffer names;
+    private final int size;
+    private final FloatBuffer vs30s;
+
+    private SiteCatalog(ByteBuffer buffer) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("not a site catalog file");
+        }
+        size = (int) buffer.getLong(8);
+        int namesLength = (int) buffer.getLong(16);
+        int position = HEADER_SIZE;
+        lons = slice(buffer, position, size * 8).asDoubleBuffer();
+        position += size * 8;
+        lats = slice(buffer, position, size * 8).asDoubleBuffer();
+        position += size * 8;
+        vs30s = slice(buffer, position, size * 4).asFloatBuffer();
+        position += size * 4;
+        nameOffsets = slice(buffer, position, (size + 1) * 4).asIntBuffer();
+        position += (size + 1) * 4;
+        names = slice(buffer, position, namesLength);
+    }
+
+    /**
+     * Calculate the PGA values for all of the sites in parallel chunks. The site
+     * vs30 is used if present, otherwise the {@link Vs30Raster} or default
+     * value.
+     *
+     * @param mag   the earthquake magnitude.
+     * @param eqLon the earthquake longitude.
+     * @param eqLat the earthquake latitude.
+     * @param depth the earthquake depth.
+     * @return the PGA values in site order, NaN if the region is not supported.
+     */
+    public float[] calcPga(double mag, double eqLon, double eqLat, double depth) {
+        final Logger log = UtilFns.createQuietLogger();
+        final RegionIndex regionIndex = RegionIndex.getInstance();
+        final RuptureGeometry rupture = RuptureGeometry.PGACALC_FINITE_FAULT
+                ? RuptureGeometry.create(mag, eqLon, eqLat, depth)
+                : null;
+        final float[] values = new float[size];
+        forEachChunk((from, to) -> {
+            int n = to - from;
+            double[] siteLats = new double[n];
+            double[] siteLons = new double[n];
+            double[] rJB = new double[n];
+            double[] rX = new double[n];
+            double[] rRup = new double[n];
+            getLats(from, siteLats, n);
+            getLons(from, siteLons, n);
+            if (rupture != null) {
+                DistanceKernel.calc(rupture, siteLats, siteLons, 0, n, rJB, rX, rRup);
+            } else {
+                SiteDistances.calc(eqLat, eqLon, depth, siteLats, siteLons, 0, n, rJB, rRup);
+                System.arraycopy(rJB, 0, rX, 0, n);
+            }
+            for (int i = 0; i < n; i++) {
+                Region region = regionIndex.getRegion(siteLats[i], siteLons[i]);
+                LogicTree<Gmm> gmmTree = GmmUtil.getGmmTree(region);
+                if (gmmTree == null) {
+                    values[from + i] = Float.NaN;
+                    continue;
+                }
+                double vs30 = getVs30(from + i);
+                values[from + i] = (float) DeterministicSpectra.calcPga(log, gmmTree, mag, rJB[i], rX[i], rRup[i],
+                        Double.isNaN(vs30) ? Vs30Raster.getVs30(siteLats[i], siteLons[i]) : vs30, rupture);
+            }
+        });
+        return values;
+    }
+
+    /**
+     * Create the location for the site.
+     *
+     * @param index the site index.
+     * @return the location.
+     */
+    public Location createLocation(int index) {
+        return UtilFns.createLocation(getLat(index), getLon(index));
+    }
+
+    /**
+     * Process the sites in chunks of {@link #CHUNK_SIZE} in parallel on the
+     * common fork/join pool.
+     *
+     * @param consumer the chunk consumer.
+     */
+    public void forEachChunk(ChunkConsumer consumer) {
+        IntStream.range(0, (size + CHUNK_SIZE - 1) / CHUNK_SIZE).parallel().forEach(chunk -> {
+            int from = chunk * CHUNK_SIZE;
+            consumer.accept(from, Math.min(size, from + CHUNK_SIZE));
+        });
+    }
+
+    /**
+     * Get the site latitude.
+     *
+     * @param index the site index.
+     * @return the latitude.
+     */
+    public double getLat(int index) {
+        return lats.get(index);
+    }
+
+    /**
+     * Copy the site latitudes.
+     *
+     * @param from   the first site.
+     * @param dst    the destination array.
+     * @param length the number of sites.
+     */
+    public void getLats(int from, double[] dst, int length) {
+        DoubleBuffer buffer = lats.duplicate();
+        buffer.position(from);
+        buffer.get(dst, 0, length);
+    }
+
+    /**
+     * Get the site longitude.
+     *
+     * @param index the site index.
+     * @return the longitude.
+     */
+    public double getLon(int index) {
+        return lons.get(index);
+    }
+
+    /**
+     * Copy the site longitudes.
+     *
+     * @param from   the first site.
+     * @param dst    the destination array.
+     * @param length the number of sites.
+     */
+    public void getLons(int from, double[] dst, int length) {
+        DoubleBuffer buffer = lons.duplicate();
+        buffer.position(from);
+        buffer.get(dst, 0, length);
+    }
+
+    /**
+     * Get the site name.
+     *
+     * @param index the site index.
+     * @return the name.
+     */
+    public String getName(int index) {
+        int start = nameOffsets.get(index);
+        byte[] bytes = new byte[nameOffsets.get(index + 1) - start];
+        ByteBuffer buffer = names.duplicate();
+        buffer.position(start);
+        buffer.get(bytes);
+        return new String(bytes, UtilFns.CHARSET);
+    }
+
+    /**
+     * Get the site vs30.
+     *
+     * @param index the site index.
+     * @return the vs30 value or NaN if none.
+     */
+    public double getVs30(int index) {
+        return vs30s.get(index);
+    }
+
+    /** @return the number of sites */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Write one name,value record per site.
+     *
+     * @param writer the writer.
+     * @param values the PGA values, NaN for no result.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void write(Writer writer, float[] values) throws IOException {
+        StringBuilder sb = new StringBuilder(64);
+        for (int i = 0; i < values.length; i++) {
+            sb.setLength(0);
+            sb.append(BatchMode.quoteCsv(getName(i))).append(',');
+            if (Float.isNaN(values[i])) {
+                if (DeterministicSpectra.PGACALC_NO_RESULT_TEXT != null) {
+                    sb.append(DeterministicSpectra.PGACALC_NO_RESULT_TEXT);
+                }
+            } else {
+                sb.append(String.format("%f", values[i]));
+            }
+            writer.append(sb).append('\n');
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.isti.gmpegmm;
+
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/**
+ * Calculates the horizontal (rJB) and rupture (rRup) distances from a point
+ * source to arrays of sites.
+ * <p>
+ * The distances are the same as {@link UtilFns#calcDistance} and
+ * {@link UtilFns#calcDistanceToRupture} but are calculated from primitive
+ * arrays. If the vector implementation ({@link #VECTOR_CALCULATOR}, built by
+ * the {@code vector} Ant target) can be loaded, which requires the
+ * {@code jdk.incubator.vector} module ({@code --add-modules
+ * jdk.incubator.vector}), and it agrees with the scalar distances within
+ * {@link #TOLERANCE} it is used, otherwise the scalar implementation is used.
+ */
+public class SiteDistances {
+    /** Number of sites in each parallel chunk */
+    public static final int CHUNK_SIZE = 4096;
+    /** PGA Calculator vector key */
+    public static final String PGACALC_VECTOR_KEY = "PGACALC_VECTOR";
+    /** PGA Calculator vector, false to always use the scalar implementation */
+    public static final boolean PGACALC_VECTOR = Boolean
+            .parseBoolean(System.getProperty(PGACALC_VECTOR_KEY, "true"));
+    /** Maximum difference in km from the scalar distances */
+    public static final double TOLERANCE = 1e-6;
+    /** The vector calculator class name */
+    public static final String VECTOR_CALCULATOR = "com.isti.gmpegmm.VectorDistanceCalculator";
+    private static final Calculator CALCULATOR = createCalculator();
+
+    /**
+     * Calculate the distances for the sites.
+     *
+     * @param eqLat   the earthquake latitude.
+     * @param eqLon   the earthquake longitude.
+     * @param eqDepth the earthquake depth in km.
+     * @param lats    the site latitudes.
+     * @param lons    the site longitudes.
+     * @param rJB     the horizontal distances in km.
+     * @param rRup    the rupture distances in km.
+     */
+    public static void calc(double eqLat, double eqLon, double eqDepth, double[] lats, double[] lons, double[] rJB,
+            double[] rRup) {
+        int size = lats.length;
+        if (lons.length != size || rJB.length < size || rRup.length < size) {
+            throw new IllegalArgumentException("invalid array length");
+        }
+        if (size <= CHUNK_SIZE) {
+            CALCULATOR.calc(eqLat, eqLon, eqDepth, lats, lons, 0, size, rJB, rRup);
+            return;
+        }
+        IntStream.range(0, (size + CHUNK_SIZE - 1) / CHUNK_SIZE).parallel().forEach(chunk -> {
+            int from = chunk * CHUNK_SIZE;
+            CALCULATOR.calc(eqLat, eqLon, eqDepth, lats, lons, from, Math.min(size, from + CHUNK_SIZE), rJB, rRup);
+        });
+    }
+
+    /**
+     * Calculate the distances for the range of sites.
+     *
+     * @param eqLat   the earthquake latitude.
+     * @param eqLon   the earthquake longitude.
+     * @param eqDepth the earthquake depth in km.
+     * @param lats    the site latitudes.
+     * @param lons    the site longitudes.
+     * @param from    the first site.
+     * @param to      the site after the last site.
+     * @param rJB     the horizontal distances in km.
+     * @param rRup    the rupture distances in km.
+     */
+    public static void calc(double eqLat, double eqLon, double eqDepth, double[] lats, double[] lons, int from,
+            int to, double[] rJB, double[] rRup) {
+        CALCULATOR.calc(eqLat, eqLon, eqDepth, lats, lons, from, to, rJB, rRup);
+    }
+
+    /**
+     * Check the calculator against {@link UtilFns#calcDistance} and
+     * {@link UtilFns#calcDistanceToRupture} for random sites.
+     *
+     * @param calculator the calculator.
+     * @param size       the number of sites.
+     * @return the maximum difference in km.
+     */
+    public static double check(Calculator calculator, int size) {
+        SplittableRandom random = new SplittableRandom(size);
+        double[] lats = new double[size];
+        double[] lons = new double[size];
+        double[] rJB = new double[size];
+        double[] rRup = new double[size];
+        double maxDiff = 0.0;
+        for (int n = 0; n < 8; n++) {
+            double eqLat = random.nextDouble(-80.0, 80.0);
+            double eqLon = random.nextDouble(-180.0, 180.0);
+            double eqDepth = random.nextDouble(0.0, 700.0);
+            for (int i = 0; i < size; i++) {
+                lats[i] = Math.max(-90.0, Math.min(90.0, eqLat + random.nextDouble(-10.0, 10.0)));
+                lons[i] = eqLon + random.nextDouble(-10.0, 10.0);
+            }
+            calculator.calc(eqLat, eqLon, eqDepth, lats, lons, 0, size, rJB, rRup);
+            for (int i = 0; i < size; i++) {
+                double distance = UtilFns.calcDistance(UtilFns.createLocation(lats[i], lons[i]),
+                        UtilFns.createLocation(eqLat, eqLon, eqDepth));
+                maxDiff = Math.max(maxDiff, Math.abs(rJB[i] - distance));
+                maxDiff = Math.max(maxDiff,
+                        Math.abs(rRup[i] - UtilFns.calcDistanceToRupture(distance, eqDepth)));
+            }
+        }
+        return maxDiff;
+    }
+
+    /**
+     * Create the calculator, the vector calculator if it is available and
+     * agrees with the scalar distances, otherwise the scalar calculator.
+     *
+     * @return the calculator.
+     */
+    private static Calculator createCalculator() {
+        if (PGACALC_VECTOR) {
+            try {
+                Calculator calculator = (Calculator) Class.forName(VECTOR_CALCULATOR).getDeclaredConstructor()
+                        .newInstance();
+                if (check(calculator, 1000) <= TOLERANCE) {
+                    return calculator;
+                }
+            } catch (Exception | LinkageError ex) {
+                // vector calculator or jdk.incubator.vector module not present
+            }
+        }
+        return new ScalarCalculator();
+    }
+
+    /** @return the calculator */
+    public static Calculator getCalculator() {
+        return CALCULATOR;
+    }
+
+    /** @return true if the vector calculator is used */
+    public static boolean isVector() {
+        return !(CALCULATOR instanceof ScalarCalculator);
+    }
+
+    /**
+     * Calculates the distances for a range of sites.
+     */
+    public interface Calculator {
+        /**
+         * Calculate the distances for the range of sites.
+         *
+         * @param eqLat   the earthquake latitude.
+         * @param eqLon   the earthquake longitude.
+         * @param eqDepth the earthquake depth in km.
+         * @param lats    the site latitudes.
+         * @param lons    the site longitudes.
+         * @param from    the first site.
+         * @param to      the site after the last site.
+         * @param rJB     the horizontal distances in km.
+         * @param rRup    the rupture distances in km.
+         */
+        void calc(double eqLat, double eqLon, double eqDepth, double[] lats, double[] lons, int from, int to,
+                double[] rJB, double[] rRup);
+    }
+
+    /**
+     * Scalar calculator.
+     */
+    static class ScalarCalculator implements Calculator {
+        @Override
+        public void calc(double eqLat, double eqLon, double eqDepth, double[] lats, double[] lons, int from, int to,
+                double[] rJB, double[] rRup) {
+            final double lat0 = Math.toRadians(eqLat);
+            final double lon0 = Math.toRadians(eqLon);
+            final double depth2 = eqDepth * eqDepth;
+            for (int i = from; i < to; i++) {
+                double lat = Math.toRadians(lats[i]);
+                double dLat = lat - lat0;
+                double dLon = (Math.toRadians(lons[i]) - lon0) * Math.cos((lat + lat0) * 0.5);
+                double distance = DistanceKernel.EARTH_RADIUS_MEAN * Math.sqrt(dLat * dLat + dLon * dLon);
+                rJB[i] = distance;
+                rRup[i] = Math.sqrt(distance * distance + depth2);
+            }
+        }
+    }
+}
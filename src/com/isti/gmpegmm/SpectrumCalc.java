@@ -0,0 +1,127 @@
+package com.isti.gmpegmm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+import gov.usgs.earthquake.nshmp.gmm.Gmm;
+import gov.usgs.earthquake.nshmp.gmm.GmmInput;
+import gov.usgs.earthquake.nshmp.gmm.GroundMotion;
+import gov.usgs.earthquake.nshmp.gmm.GroundMotions;
+import gov.usgs.earthquake.nshmp.gmm.Imt;
+import gov.usgs.earthquake.nshmp.tree.Branch;
+import gov.usgs.earthquake.nshmp.tree.LogicTree;
+
+/**
+ * Calculates the weighted median response spectrum over every IMT supported by
+ * all branches of the region logic tree.
+ * <p>
+ * The ground motion model input is built once per scenario and the IMT by
+ * branch matrix is evaluated in parallel on the common fork/join pool. Each IMT
+ * is reduced in branch order, so the PGA value matches
+ * {@link DeterministicSpectra}.
+ */
+public class SpectrumCalc {
+    private static final String LOG_PREFIX = UtilFns.getLogPrefix(SpectrumCalc.class);
+    /** Spectrum mode command line option */
+    public static final String SPECTRUM_OPTION = "--spectrum";
+
+    /**
+     * Calculate the spectrum.
+     *
+     * @param gmmTree the logic tree.
+     * @param imts    the intensity measure types.
+     * @param input   the input.
+     * @return the weighted median values in IMT order.
+     */
+    public static double[] calcSpectrum(LogicTree<Gmm> gmmTree, Imt[] imts, GmmInput input) {
+        final int nb = gmmTree.size();
+        final double[] means = new double[imts.length * nb];
+        IntStream.range(0, means.length).parallel().forEach(i -> {
+            Imt imt = imts[i / nb];
+            Gmm gmm = gmmTree.get(i % nb).value();
+            LogicTree<GroundMotion> gmTree = GmmCache.getInstance(gmm, imt).calc(input);
+            means[i] = Math.exp(GroundMotions.combine(gmTree).mean());
+        });
+        final double[] values = new double[imts.length];
+        for (int i = 0; i < imts.length; i++) {
+            double value = 0.0;
+            for (int j = 0; j < nb; j++) {
+                value += gmmTree.get(j).weight() * means[i * nb + j];
+            }
+            values[i] = value;
+        }
+        return values;
+    }
+
+    /**
+     * Calculate the spectrum record for the scenario.
+     *
+     * @param log      the logger.
+     * @param scenario the scenario.
+     * @return the record with a comma separated IMT=value for each IMT.
+     */
+    static String calcSpectrum(Logger log, Scenario scenario) {
+        LogicTree<Gmm> gmmTree = GmmUtil.getGmmTree(scenario.getRegion());
+        double[] distances = new double[3];
+        RuptureGeometry rupture = scenario.calcDistances(distances);
+        if (log.isLoggable(Level.INFO)) {
+            log.info(scenario.toLogString(distances));
+        }
+        GmmInput input = DeterministicSpectra.createInput(scenario.getMag(), distances[0], distances[1], distances[2],
+                scenario.getVs30(), rupture);
+        Imt[] imts = getImts(gmmTree);
+        double[] values = calcSpectrum(gmmTree, imts, input);
+        StringBuilder sb = new StringBuilder(imts.length * 20);
+        for (int i = 0; i < imts.length; i++) {
+            if (i != 0) {
+                sb.append(',');
+            }
+            sb.append(imts[i].name()).append('=').append(String.format("%f", values[i]));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Get the intensity measure types supported by all of the branches.
+     *
+     * @param gmmTree the logic tree.
+     * @return the intensity measure types in natural order.
+     */
+    public static Imt[] getImts(LogicTree<Gmm> gmmTree) {
+        Set<Imt> imts = EnumSet.allOf(Imt.class);
+        for (Branch<Gmm> branch : gmmTree) {
+            imts.retainAll(branch.value().supportedImts());
+        }
+        return imts.toArray(new Imt[imts.size()]);
+    }
+
+    /**
+     * Run the spectrum mode: {@link #SPECTRUM_OPTION} followed by the scenario
+     * arguments, or by an optional file of scenarios in the {@link BatchMode}
+     * format.
+     *
+     * @param args the program arguments.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static void run(String[] args) throws IOException {
+        final Logger log = Logger.getLogger(DeterministicSpectra.class.toString());
+        if (args.length > Scenario.MIN_ARGS) {
+            String[] scenarioArgs = new String[args.length - 1];
+            System.arraycopy(args, 1, scenarioArgs, 0, scenarioArgs.length);
+            String record = calcSpectrum(log, Scenario.parse(scenarioArgs));
+            log.info(LOG_PREFIX + record);
+            System.out.println(record);
+            return;
+        }
+        try (InputStream is = BatchMode.openInput(args.length > 1 ? args[1] : BatchMode.STDIN_NAME);
+                OutputStream os = BatchMode.openOutput()) {
+            BatchMode.runText(is, os, scenario -> calcSpectrum(log, scenario));
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package com.isti.gmpegmm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import gov.usgs.earthquake.nshmp.gmm.Gmm;
+import gov.usgs.earthquake.nshmp.tree.LogicTree;
+
+/**
+ * Finds the sites in a {@link SiteCatalog} where the PGA value for an event may
+ * reach a threshold.
+ * <p>
+ * For each region and vs30 band present in the catalog the maximum distance at
+ * which the PGA value may reach the threshold is found with a binary search,
+ * using the maximum PGA value of {@link #VS30_SAMPLES} vs30 values spaced
+ * geometrically over the vs30 range of the band and assuming that the PGA
+ * value decreases with distance. The PGA values are only calculated for the
+ * sites inside that distance, the other sites are {@link #PRUNED}.
+ * <p>
+ * For a finite rupture the maximum is also taken over the rX values a site at
+ * the distance may have and uses the smallest possible rupture distance. The
+ * pruning still assumes that the PGA value decreases with distance and is
+ * bounded by the values at the sampled vs30 and rX values. To allow for this
+ * the search uses the threshold times the
+ * {@link #PGACALC_THRESHOLD_MARGIN_KEY} margin, a smaller margin prunes fewer
+ * sites.
+ */
+public class ThresholdQuery {
+    private static final String LOG_PREFIX = UtilFns.getLogPrefix(ThresholdQuery.class);
+    /** Text written for the sites that were not calculated */
+    public static final String BELOW_TEXT = "below";
+    /** Maximum distance in km, sites are not pruned if the threshold is reached */
+    public static final double MAX_DISTANCE = 1000.0;
+    /** PGA Calculator threshold margin key */
+    public static final String PGACALC_THRESHOLD_MARGIN_KEY = "PGACALC_THRESHOLD_MARGIN";
+    /**
+     * PGA Calculator threshold margin text, the fraction of the threshold used
+     * to find the maximum distance
+     */
+    public static final String PGACALC_THRESHOLD_MARGIN_TEXT = System.getProperty(PGACALC_THRESHOLD_MARGIN_KEY,
+            "0.5");
+    /** Value for the sites that were not calculated */
+    public static final float PRUNED = Float.NEGATIVE_INFINITY;
+    /** Threshold mode command line option */
+    public static final String THRESHOLD_OPTION = "--threshold";
+    /** Number of rX values sampled over the hanging wall for a finite rupture */
+    public static final int RX_SAMPLES = 5;
+    /** Upper vs30 of each band but the last (NEHRP site class boundaries) */
+    public static final double[] VS30_BANDS = { 180.0, 360.0, 760.0, 1500.0 };
+    /** Number of vs30 values sampled over the range of each band */
+    public static final int VS30_SAMPLES = 9;
+
+    /**
+     * Get the vs30 band.
+     *
+     * @param vs30 the vs30 value.
+     * @return the band.
+     */
+    public static int getBand(double vs30) {
+        int band = 0;
+        while (band < VS30_BANDS.length && vs30 >= VS30_BANDS[band]) {
+            band++;
+        }
+        return band;
+    }
+
+    /**
+     * Run the threshold mode: {@link #THRESHOLD_OPTION} catalog threshold eqMag
+     * eqLon eqLat eqDepth.
+     *
+     * @param args the program arguments.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static void run(String[] args) throws IOException {
+        final Logger log = Logger.getLogger(DeterministicSpectra.class.toString());
+        if (args.length != 7) {
+            throw new IllegalArgumentException("Invalid number of arguments: " + args.length);
+        }
+        SiteCatalog catalog = SiteCatalog.open(args[1]);
+        double threshold = UtilFns.parseDouble(args[2]);
+        ThresholdQuery query = new ThresholdQuery(catalog, threshold, UtilFns.checkMagnitude(args[3]),
+                UtilFns.checkLongitude(args[4]), UtilFns.checkLatitude(args[5]), UtilFns.checkDepth(args[6]));
+        long start = System.nanoTime();
+        float[] values = query.calc();
+        int count = 0;
+        for (float value : values) {
+            if (value >= threshold) {
+                count++;
+            }
+        }
+        log.info(String.format("%s%d sites, %d pruned, %d at or above %s in %d ms", LOG_PREFIX, values.length,
+                query.getPrunedCount(), count, args[2], (System.nanoTime() - start) / 1000000));
+        log.info(String.format("%sthe pruning assumes the value decreases with distance and a site value is at"
+                + " most 1/%s times the sampled maximum (-D%s)", LOG_PREFIX, PGACALC_THRESHOLD_MARGIN_TEXT,
+                PGACALC_THRESHOLD_MARGIN_KEY));
+        try (OutputStream os = BatchMode.openOutput();
+                Writer writer = new OutputStreamWriter(os, UtilFns.CHARSET)) {
+            StringBuilder sb = new StringBuilder(64);
+            for (int i = 0; i < values.length; i++) {
+                sb.setLength(0);
+                sb.append(BatchMode.quoteCsv(catalog.getName(i))).append(',');
+                if (values[i] == PRUNED) {
+                    sb.append(BELOW_TEXT);
+                } else if (Float.isNaN(values[i])) {
+                    if (DeterministicSpectra.PGACALC_NO_RESULT_TEXT != null) {
+                        sb.append(DeterministicSpectra.PGACALC_NO_RESULT_TEXT);
+                    }
+                } else {
+                    sb.append(String.format("%f", values[i]));
+                }
+                writer.append(sb).append('\n');
+            }
+        }
+    }
+
+    private final SiteCatalog catalog;
+    private final double depth;
+    private final double eqLat;
+    private final double eqLon;
+    private final Logger log = Logger.getLogger(DeterministicSpectra.class.toString());
+    private final double mag;
+    private final double margin;
+    private final LongAdder prunedCount = new LongAdder();
+    private final RuptureGeometry rupture;
+    private final double threshold;
+
+    /**
+     * Create the query.
+     *
+     * @param catalog   the site catalog.
+     * @param threshold the PGA threshold.
+     * @param mag       the earthquake magnitude.
+     * @param eqLon     the earthquake longitude.
+     * @param eqLat     the earthquake latitude.
+     * @param depth     the earthquake depth.
+     * @throws IllegalArgumentException if the threshold or the
+     *                                  {@link #PGACALC_THRESHOLD_MARGIN_KEY}
+     *                                  margin is not valid.
+     */
+    public ThresholdQuery(SiteCatalog catalog, double threshold, double mag, double eqLon, double eqLat,
+            double depth) {
+        if (!(threshold > 0.0)) {
+            throw new IllegalArgumentException("invalid threshold (" + threshold + ")");
+        }
+        margin = UtilFns.parseDouble(PGACALC_THRESHOLD_MARGIN_TEXT);
+        if (!(margin > 0.0 && margin <= 1.0)) {
+            throw new IllegalArgumentException("invalid threshold margin (" + PGACALC_THRESHOLD_MARGIN_TEXT
+                    + "), must be greater than 0 and at most 1");
+        }
+        this.catalog = catalog;
+        this.threshold = threshold;
+        this.mag = mag;
+        this.eqLon = eqLon;
+        this.eqLat = eqLat;
+        this.depth = depth;
+        rupture = RuptureGeometry.PGACALC_FINITE_FAULT ? RuptureGeometry.create(mag, eqLon, eqLat, depth) : null;
+    }
+
+    /**
+     * Calculate the PGA values for the sites that may reach the threshold.
+     *
+     * @return the PGA values in site order, {@link #PRUNED} if not calculated or
+     *         NaN if the region is not supported.
+     */
+    public float[] calc() {
+        final int size = catalog.size();
+        final RegionIndex regionIndex = RegionIndex.getInstance();
+        final Region[] regions = Region.values();
+        final byte[] siteRegions = new byte[size];
+        final float[] siteVs30s = new float[size];
+        // find the region and vs30 of each site
+        catalog.forEachChunk((from, to) -> {
+            for (int i = from; i < to; i++) {
+                double lat = catalog.getLat(i);
+                double lon = catalog.getLon(i);
+                double vs30 = catalog.getVs30(i);
+                siteRegions[i] = (byte) regionIndex.getRegion(lat, lon).ordinal();
+                siteVs30s[i] = (float) (Double.isNaN(vs30) ? Vs30Raster.getVs30(lat, lon) : vs30);
+            }
+        });
+        // the vs30 range of each region and band
+        final int bands = VS30_BANDS.length + 1;
+        final double[] minVs30 = new double[regions.length * bands];
+        final double[] maxVs30 = new double[regions.length * bands];
+        Arrays.fill(minVs30, Double.POSITIVE_INFINITY);
+        Arrays.fill(maxVs30, Double.NEGATIVE_INFINITY);
+        for (int i = 0; i < size; i++) {
+            int index = siteRegions[i] * bands + getBand(siteVs30s[i]);
+            minVs30[index] = Math.min(minVs30[index], siteVs30s[i]);
+            maxVs30[index] = Math.max(maxVs30[index], siteVs30s[i]);
+        }
+        final double[] radius = new double[regions.length * bands];
+        for (int index = 0; index < radius.length; index++) {
+            Region region = regions[index / bands];
+            LogicTree<Gmm> gmmTree = GmmUtil.getGmmTree(region);
+            if (gmmTree != null && minVs30[index] <= maxVs30[index]) {
+                radius[index] = calcRadius(gmmTree, minVs30[index], maxVs30[index]);
+                log.info(String.format("%sregion=%s, vs30=%f to %f, radius=%f", LOG_PREFIX, region,
+                        minVs30[index], maxVs30[index], radius[index]));
+            }
+        }
+        final Logger quietLog = UtilFns.createQuietLogger();
+        final float[] values = new float[size];
+        catalog.forEachChunk((from, to) -> {
+            int n = to - from;
+            double[] siteLats = new double[n];
+            double[] siteLons = new double[n];
+            double[] rJB = new double[n];
+            double[] rX = new double[n];
+            double[] rRup = new double[n];
+            catalog.getLats(from, siteLats, n);
+            catalog.getLons(from, siteLons, n);
+            if (rupture != null) {
+                DistanceKernel.calc(rupture, siteLats, siteLons, 0, n, rJB, rX, rRup);
+            } else {
+                SiteDistances.calc(eqLat, eqLon, depth, siteLats, siteLons, 0, n, rJB, rRup);
+                System.arraycopy(rJB, 0, rX, 0, n);
+            }
+            int pruned = 0;
+            for (int i = 0; i < n; i++) {
+                int site = from + i;
+                Region region = regions[siteRegions[site]];
+                LogicTree<Gmm> gmmTree = GmmUtil.getGmmTree(region);
+                if (gmmTree == null) {
+                    values[site] = Float.NaN;
+                } else if (rJB[i] > radius[siteRegions[site] * bands + getBand(siteVs30s[site])]) {
+                    values[site] = PRUNED;
+                    pruned++;
+                } else {
+                    values[site] = (float) DeterministicSpectra.calcPga(quietLog, gmmTree, mag, rJB[i], rX[i],
+                            rRup[i], siteVs30s[site], rupture);
+                }
+            }
+            prunedCount.add(pruned);
+        });
+        return values;
+    }
+
+    /**
+     * Calculate the maximum PGA value at the distance for the vs30 range and,
+     * for a finite rupture, the rX values a site at that distance may have,
+     * which range from -distance on the footwall to distance + width * cos(dip)
+     * on the hanging wall: -distance, 0 and {@link #RX_SAMPLES} values from
+     * distance to distance + width * cos(dip). The rupture distance is the
+     * smallest possible, sqrt(distance² + zTop²).
+     *
+     * @param gmmTree  the logic tree.
+     * @param distance the Joyner-Boore distance.
+     * @param vs30s    the vs30 values.
+     * @return the maximum PGA value.
+     */
+    private double calcMaxPga(LogicTree<Gmm> gmmTree, double distance, double[] vs30s) {
+        final Logger quietLog = UtilFns.createQuietLogger();
+        double zTop = rupture != null ? rupture.getZTop() : depth;
+        double rRup = Math.sqrt(distance * distance + zTop * zTop);
+        final double[] rXs;
+        if (rupture != null) {
+            double hangingWall = rupture.getWidth() * Math.cos(Math.toRadians(rupture.getDip()));
+            rXs = new double[RX_SAMPLES + 2];
+            rXs[0] = -distance;
+            rXs[1] = 0.0;
+            for (int i = 0; i < RX_SAMPLES; i++) {
+                rXs[i + 2] = distance + hangingWall * i / (RX_SAMPLES - 1.0);
+            }
+        } else {
+            rXs = new double[] { distance };
+        }
+        double value = 0.0;
+        for (double vs30 : vs30s) {
+            for (double rX : rXs) {
+                value = Math.max(value, DeterministicSpectra.calcPga(quietLog, gmmTree, mag, distance, rX, rRup,
+                        vs30, rupture));
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Find the Joyner-Boore distance beyond which the PGA value is below the
+     * threshold times the margin.
+     *
+     * @param gmmTree the logic tree.
+     * @param minVs30 the minimum vs30 value.
+     * @param maxVs30 the maximum vs30 value.
+     * @return the distance, infinite if the threshold is reached at
+     *         {@link #MAX_DISTANCE}.
+     */
+    private double calcRadius(LogicTree<Gmm> gmmTree, double minVs30, double maxVs30) {
+        final double[] vs30s = new double[minVs30 < maxVs30 ? VS30_SAMPLES : 1];
+        for (int i = 0; i < vs30s.length; i++) {
+            vs30s[i] = i == 0 ? minVs30 : minVs30 * Math.pow(maxVs30 / minVs30, i / (vs30s.length - 1.0));
+        }
+        final double target = threshold * margin;
+        if (calcMaxPga(gmmTree, MAX_DISTANCE, vs30s) >= target) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double lo = 0.0;
+        double hi = MAX_DISTANCE;
+        if (calcMaxPga(gmmTree, lo, vs30s) < target) {
+            return lo;
+        }
+        // the value at lo reaches the target and the value at hi does not
+        while (hi - lo > 0.1) {
+            double mid = (lo + hi) * 0.5;
+            if (calcMaxPga(gmmTree, mid, vs30s) >= target) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        return hi;
+    }
+
+    /** @return the number of sites that were not calculated */
+    public long getPrunedCount() {
+        return prunedCount.sum();
+    }
+}
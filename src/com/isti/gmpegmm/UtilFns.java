@@ -17,7 +17,11 @@ import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
 import java.util.logging.LogManager;
+import java.util.logging.Logger;
 
 import gov.usgs.earthquake.nshmp.Earthquakes;
 import gov.usgs.earthquake.nshmp.Maths;
@@ -59,6 +63,24 @@ public class UtilFns {
         return Locations.horzDistanceFast(p1, p2);
     }
 
+    /**
+     * Calculate the distance with the same approximation as
+     * {@link #calcDistance(Location, Location)} without creating locations.
+     * 
+     * @param lat1 the first latitude.
+     * @param lon1 the first longitude.
+     * @param lat2 the second latitude.
+     * @param lon2 the second longitude.
+     * @return the distance.
+     */
+    public static double calcDistance(double lat1, double lon1, double lat2, double lon2) {
+        double lat1Rad = Math.toRadians(lat1);
+        double lat2Rad = Math.toRadians(lat2);
+        double dLat = lat1Rad - lat2Rad;
+        double dLon = (Math.toRadians(lon1) - Math.toRadians(lon2)) * Math.cos((lat1Rad + lat2Rad) * 0.5);
+        return DistanceKernel.EARTH_RADIUS_MEAN * Math.sqrt(dLat * dLat + dLon * dLon);
+    }
+
     /**
      * Calculate the distance to rupture plane.
      * 
@@ -278,6 +300,77 @@ public class UtilFns {
         }
     }
 
+    /**
+     * Calculate the complementary error function with a Chebyshev
+     * approximation (fractional error less than 1.2e-7).
+     *
+     * @param x the value.
+     * @return the complementary error function.
+     */
+    public static double erfc(double x) {
+        double z = Math.abs(x);
+        double t = 1.0 / (1.0 + 0.5 * z);
+        double ans = t * Math.exp(-z * z - 1.26551223 + t * (1.00002368 + t * (0.37409196 + t * (0.09678418
+                + t * (-0.18628806 + t * (0.27886807 + t * (-1.13520398 + t * (1.48851587 + t * (-0.82215223
+                        + t * 0.17087277)))))))));
+        return x >= 0.0 ? ans : 2.0 - ans;
+    }
+
+    /**
+     * Determine if the file exists.
+     * 
+     * @param file the file.
+     * @return true if the file exists, false if not or it could not be checked.
+     */
+    private static boolean exists(File file) {
+        try {
+            return file.exists();
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Find the file for the specified name. The name is looked up as a file, then
+     * in the resource directory ({@link #RESOURCE_DIR_KEY}) and then in the
+     * default resource directory.
+     * 
+     * @param name the file name or resource name.
+     * @return the file or null if none.
+     */
+    public static File findFile(String name) {
+        File file = null;
+        file = new File(name);
+        if (exists(file)) {
+            return file;
+        }
+        if (name.startsWith(RESOURCE_DIR)) {
+            if (!RESOURCE_DIR.equals(RESOURCE_DIRNAME)) {
+                file = new File(RESOURCE_DIRNAME, name.substring(RESOURCE_DIR.length()));
+                if (exists(file)) {
+                    return file;
+                }
+            }
+        } else if (name.startsWith(RESOURCE_DIRNAME)) {
+            if (!RESOURCE_DIR.equals(RESOURCE_DIRNAME)) {
+                file = new File(RESOURCE_DIR, name.substring(RESOURCE_DIRNAME.length()));
+                if (exists(file)) {
+                    return file;
+                }
+            }
+        } else {
+            file = new File(RESOURCE_DIR, name);
+            if (exists(file)) {
+                return file;
+            }
+            file = new File(RESOURCE_DIRNAME, name);
+            if (exists(file)) {
+                return file;
+            }
+        }
+        return null;
+    }
+
     /** @return the maximum depth */
     public static double getDepthMax() {
         return Earthquakes.DEPTH_RANGE.upperEndpoint();
@@ -288,6 +381,18 @@ public class UtilFns {
         return Earthquakes.DEPTH_RANGE.lowerEndpoint();
     }
 
+    /**
+     * Create a logger that discards messages below the warning level, used where
+     * per calculation logging would dominate the calculation.
+     * 
+     * @return the logger.
+     */
+    public static Logger createQuietLogger() {
+        Logger log = Logger.getAnonymousLogger();
+        log.setLevel(Level.WARNING);
+        return log;
+    }
+
     /** @return the maximum latitude */
     public static double getLatitudeMax() {
         return Coordinates.LAT_RANGE.upperEndpoint();
@@ -381,57 +486,32 @@ public class UtilFns {
         UtilFns.closeQuietly(is);
     }
 
+    /**
+     * Create an executor that starts a new virtual thread for each task.
+     * 
+     * @return the executor or null if virtual threads are not available in this
+     *         runtime.
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
     /**
      * Open the input stream for the specified name.
      * 
      * @param name the file name or system resource name.
      * @return the input stream, not null.
      * @throws FileNotFoundException if the input stream could not be opened.
+     * @see #findFile(String)
      */
     public static InputStream openInputStream(String name) throws FileNotFoundException {
-        File file = null;
-        file = new File(name);
-        try {
-            if (file.exists()) {
-                return new FileInputStream(file);
-            }
-        } catch (Exception ex) {
-        }
-        if (name.startsWith(RESOURCE_DIR)) {
-            if (!RESOURCE_DIR.equals(RESOURCE_DIRNAME)) {
-                file = new File(RESOURCE_DIRNAME, name.substring(RESOURCE_DIR.length()));
-                try {
-                    if (file.exists()) {
-                        return new FileInputStream(file);
-                    }
-                } catch (Exception ex) {
-                }
-            }
-        } else if (name.startsWith(RESOURCE_DIRNAME)) {
-            if (!RESOURCE_DIR.equals(RESOURCE_DIRNAME)) {
-                file = new File(RESOURCE_DIR, name.substring(RESOURCE_DIRNAME.length()));
-                try {
-                    if (file.exists()) {
-                        return new FileInputStream(file);
-                    }
-                } catch (Exception ex) {
-                }
-            }
-        } else {
-            file = new File(RESOURCE_DIR, name);
-            try {
-                if (file.exists()) {
-                    return new FileInputStream(file);
-                }
-            } catch (Exception ex) {
-            }
-            file = new File(RESOURCE_DIRNAME, name);
-            try {
-                if (file.exists()) {
-                    return new FileInputStream(file);
-                }
-            } catch (Exception ex) {
-            }
+        File file = findFile(name);
+        if (file != null) {
+            return new FileInputStream(file);
         }
         InputStream inputStream = openResourceInputStream(name);
         if (inputStream == null) {
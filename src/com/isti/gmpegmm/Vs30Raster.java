@@ -0,0 +1,344 @@
+package com.isti.gmpegmm;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import gov.usgs.earthquake.nshmp.calc.Site;
+
+/**
+ * Memory-mapped vs30 raster with bilinear lookup.
+ * <p>
+ * The raster is little-endian with a {@link #HEADER_SIZE} byte header (magic,
+ * version, number of columns, number of rows, minimum longitude, minimum
+ * latitude and spacing of the nodes) followed by one float per node in
+ * row-major order starting at the minimum latitude and longitude, NaN if there
+ * is no data. The file is mapped in bands of rows of at most
+ * {@link #MAX_BAND_SIZE} bytes, each band overlapping the next by one row, so
+ * rasters larger than 2 GB can be used and the nodes around a point are always
+ * in one band. The values are read from the mapped bands with absolute gets so
+ * lookups are lock-free and do not allocate. Longitudes outside the raster are
+ * also looked up 360 degrees east or west.
+ * <p>
+ * If the {@link #PGACALC_VS30_RASTER_KEY} property is specified the raster is
+ * used for sites without a vs30 value.
+ */
+public class Vs30Raster {
+    private static final String LOG_PREFIX = UtilFns.getLogPrefix(Vs30Raster.class);
+    /** Header size in bytes */
+    public static final int HEADER_SIZE = 4 * 4 + 8 * 3;
+    /** Magic number */
+    public static final int MAGIC = 0x52565347; // "GSVR" little-endian
+    /** Maximum size of a mapped band of rows in bytes */
+    public static final int MAX_BAND_SIZE = 1 << 30;
+    /** PGA Calculator vs30 raster key */
+    public static final String PGACALC_VS30_RASTER_KEY = "PGACALC_VS30_RASTER";
+    /** PGA Calculator vs30 raster file name or null if none */
+    public static final String PGACALC_VS30_RASTER_TEXT = System.getProperty(PGACALC_VS30_RASTER_KEY);
+    /** Raster build command line option */
+    public static final String VS30_BUILD_OPTION = "--vs30-build";
+    /** Raster version */
+    public static final int VERSION = 1;
+
+    private static class Holder {
+        private static final Vs30Raster INSTANCE = load();
+    }
+
+    /**
+     * Convert an ESRI ASCII grid to a raster. The grid cell centers are the
+     * raster nodes.
+     *
+     * @param is   the ASCII grid input stream.
+     * @param path the raster path.
+     * @return the raster.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static Vs30Raster convert(InputStream is, Path path) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, UtilFns.CHARSET));
+        Map<String, String> header = new HashMap<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length != 2 || !Character.isLetter(fields[0].charAt(0))) {
+                break;
+            }
+            header.put(fields[0].toLowerCase(Locale.ROOT), fields[1]);
+        }
+        int ncols = (int) UtilFns.parseDouble(getValue(header, "ncols"));
+        int nrows = (int) UtilFns.parseDouble(getValue(header, "nrows"));
+        double spacing = UtilFns.parseDouble(getValue(header, "cellsize"));
+        double minLon;
+        double minLat;
+        if (header.containsKey("xllcenter")) {
+            minLon = UtilFns.parseDouble(header.get("xllcenter"));
+            minLat = UtilFns.parseDouble(getValue(header, "yllcenter"));
+        } else {
+            minLon = UtilFns.parseDouble(getValue(header, "xllcorner")) + spacing * 0.5;
+            minLat = UtilFns.parseDouble(getValue(header, "yllcorner")) + spacing * 0.5;
+        }
+        String noData = header.get("nodata_value");
+        double noDataValue = noData != null ? UtilFns.parseDouble(noData) : Double.NaN;
+        if (ncols < 2 || nrows < 2 || !(spacing > 0.0)) {
+            throw new IllegalArgumentException("invalid grid");
+        }
+        checkColumns(ncols);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(ncols).putInt(nrows);
+            buffer.putDouble(minLon).putDouble(minLat).putDouble(spacing);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer = ByteBuffer.allocate(ncols * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            // the ASCII grid rows start at the maximum latitude
+            int row = nrows - 1;
+            int col = 0;
+            while (line != null) {
+                for (String field : line.trim().split("\\s+")) {
+                    if (field.isEmpty()) {
+                        continue;
+                    }
+                    if (row < 0) {
+                        throw new IllegalArgumentException("too many values");
+                    }
+                    double value = UtilFns.parseDouble(field);
+                    buffer.putFloat(value == noDataValue ? Float.NaN : (float) value);
+                    if (++col == ncols) {
+                        buffer.flip();
+                        long position = HEADER_SIZE + (long) row * ncols * Float.BYTES;
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer, position + buffer.position());
+                        }
+                        buffer.clear();
+                        col = 0;
+                        row--;
+                    }
+                }
+                line = reader.readLine();
+            }
+            if (row >= 0) {
+                throw new IllegalArgumentException("too few values");
+            }
+            return new Vs30Raster(channel);
+        }
+    }
+
+    /**
+     * Check that two rows fit in a band.
+     *
+     * @param ncols the number of columns.
+     * @throws IllegalArgumentException if the rows are too long.
+     */
+    private static void checkColumns(int ncols) {
+        if ((long) ncols * Float.BYTES * 2 > MAX_BAND_SIZE) {
+            throw new IllegalArgumentException("too many columns (" + ncols + "), the maximum is "
+                    + MAX_BAND_SIZE / Float.BYTES / 2);
+        }
+    }
+
+    /**
+     * Get the raster for the {@link #PGACALC_VS30_RASTER_KEY} property.
+     *
+     * @return the raster or null if none.
+     */
+    public static Vs30Raster getInstance() {
+        return PGACALC_VS30_RASTER_TEXT != null ? Holder.INSTANCE : null;
+    }
+
+    private static String getValue(Map<String, String> header, String key) {
+        String value = header.get(key);
+        if (value == null) {
+            throw new IllegalArgumentException("missing " + key);
+        }
+        return value;
+    }
+
+    /**
+     * Get the vs30 value for the site from the {@link #PGACALC_VS30_RASTER_KEY}
+     * raster.
+     *
+     * @param lat the site latitude.
+     * @param lon the site longitude.
+     * @return the vs30 value or {@link Site#VS_30_DEFAULT} if there is no raster
+     *         or no raster value for the site.
+     */
+    public static double getVs30(double lat, double lon) {
+        Vs30Raster raster = getInstance();
+        if (raster != null) {
+            double vs30 = raster.lookup(lat, lon);
+            if (!Double.isNaN(vs30)) {
+                return vs30;
+            }
+        }
+        return Site.VS_30_DEFAULT;
+    }
+
+    private static Vs30Raster load() {
+        try {
+            Vs30Raster raster = open(PGACALC_VS30_RASTER_TEXT);
+            Logger.getLogger(DeterministicSpectra.class.toString()).info(LOG_PREFIX + raster);
+            return raster;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Open the raster.
+     *
+     * @param name the file name or resource name, see
+     *             {@link UtilFns#findFile(String)}.
+     * @return the raster.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static Vs30Raster open(String name) throws IOException {
+        File file = UtilFns.findFile(name);
+        if (file == null) {
+            throw new FileNotFoundException("Could not find vs30 raster (" + name + ")");
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new Vs30Raster(channel);
+        }
+    }
+
+    /**
+     * Run the raster build mode: {@link #VS30_BUILD_OPTION} grid raster.
+     *
+     * @param args the program arguments.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static void run(String[] args) throws IOException {
+        if (args.length != 3) {
+            throw new IllegalArgumentException("Invalid number of arguments: " + args.length);
+        }
+        try (InputStream is = BatchMode.openInput(args[1])) {
+            Vs30Raster raster = convert(is, Paths.get(args[2]));
+            Logger.getLogger(DeterministicSpectra.class.toString()).info(LOG_PREFIX + raster);
+        }
+    }
+
+    /** The rows in a band, not including the overlapping row */
+    private final int bandRows;
+    /** The bands of rows */
+    private final FloatBuffer[] bands;
+    private final double maxLat;
+    private final double maxLon;
+    private final double minLat;
+    private final double minLon;
+    private final int ncols;
+    private final int nrows;
+    private final double scale;
+    private final double spacing;
+
+    private Vs30Raster(FileChannel channel) throws IOException {
+        ByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, Math.min(HEADER_SIZE, channel.size()))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("not a vs30 raster file");
+        }
+        ncols = buffer.getInt(8);
+        nrows = buffer.getInt(12);
+        minLon = buffer.getDouble(16);
+        minLat = buffer.getDouble(24);
+        spacing = buffer.getDouble(32);
+        if (ncols < 2 || nrows < 2) {
+            throw new IllegalArgumentException("invalid vs30 raster size " + ncols + "x" + nrows);
+        }
+        checkColumns(ncols);
+        long rowSize = (long) ncols * Float.BYTES;
+        if (channel.size() < HEADER_SIZE + rowSize * nrows) {
+            throw new IllegalArgumentException("truncated vs30 raster file");
+        }
+        maxLon = minLon + (ncols - 1) * spacing;
+        maxLat = minLat + (nrows - 1) * spacing;
+        scale = 1.0 / spacing;
+        bandRows = (int) Math.min(MAX_BAND_SIZE / rowSize - 1, nrows - 1);
+        // the last row is only the overlapping row of the last band
+        bands = new FloatBuffer[(nrows - 2) / bandRows + 1];
+        for (int band = 0; band < bands.length; band++) {
+            int row = band * bandRows;
+            int rows = Math.min(bandRows + 1, nrows - row);
+            bands[band] = channel.map(MapMode.READ_ONLY, HEADER_SIZE + row * rowSize, rows * rowSize)
+                    .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        }
+    }
+
+    /**
+     * Get the vs30 value with bilinear interpolation of the surrounding nodes.
+     * Nodes without data are ignored.
+     *
+     * @param lat the latitude.
+     * @param lon the longitude (-360 to 360).
+     * @return the vs30 value or NaN if outside the raster or no data.
+     */
+    public double lookup(double lat, double lon) {
+        if (lon < minLon) {
+            lon += 360.0;
+        } else if (lon > maxLon) {
+            lon -= 360.0;
+        }
+        if (!(lat >= minLat && lat <= maxLat && lon >= minLon && lon <= maxLon)) {
+            return Double.NaN;
+        }
+        double x = (lon - minLon) * scale;
+        double y = (lat - minLat) * scale;
+        int col = Math.min((int) x, ncols - 2);
+        int row = Math.min((int) y, nrows - 2);
+        double fx = x - col;
+        double fy = y - row;
+        int band = row / bandRows;
+        FloatBuffer values = bands[band];
+        int index = (row - band * bandRows) * ncols + col;
+        double sum = 0.0;
+        double weights = 0.0;
+        double w = (1.0 - fx) * (1.0 - fy);
+        float v = values.get(index);
+        if (!Float.isNaN(v) && w > 0.0) {
+            sum += w * v;
+            weights += w;
+        }
+        w = fx * (1.0 - fy);
+        v = values.get(index + 1);
+        if (!Float.isNaN(v) && w > 0.0) {
+            sum += w * v;
+            weights += w;
+        }
+        w = (1.0 - fx) * fy;
+        v = values.get(index + ncols);
+        if (!Float.isNaN(v) && w > 0.0) {
+            sum += w * v;
+            weights += w;
+        }
+        w = fx * fy;
+        v = values.get(index + ncols + 1);
+        if (!Float.isNaN(v) && w > 0.0) {
+            sum += w * v;
+            weights += w;
+        }
+        return weights > 0.0 ? sum / weights : Double.NaN;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("vs30 raster %dx%d, lon=%f to %f, lat=%f to %f, spacing=%f", ncols, nrows, minLon,
+                maxLon, minLat, maxLat, spacing);
+    }
+}